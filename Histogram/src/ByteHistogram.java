@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A histogram of raw byte values, 256 buckets, for binary data.
+ * <p>
+ * Nothing is folded together: every byte value gets its own bucket,
+ * and counts are longs so multi-GB inputs don't overflow.
+ */
+public class ByteHistogram
+{
+    // Same region size Histogram.process(Path) maps at a time.
+    private static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
+
+    private long[] results = new long[256];
+
+    /**
+     * Optional engine; when set, big inputs are split across its pool.
+     */
+    private HistogramEngine engine;
+
+    private int doNotMultiThreadIfLessThan = HistogramEngine.DEFAULT_SPLIT_THRESHOLD;
+
+    /**
+     * Creates a histogram that counts on the calling thread.
+     */
+    public ByteHistogram()
+    {
+    }
+
+    /**
+     * Creates a histogram that splits big inputs across an engine's pool.
+     * The engine is not closed by this histogram.
+     *
+     * @param engine
+     */
+    public ByteHistogram(HistogramEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Counts every byte of the array, replacing previous counts.
+     *
+     * @param data
+     */
+    public void process(byte[] data)
+    {
+        process(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Counts the bytes between the buffer's position and limit, replacing
+     * previous counts. The buffer's position is left where it was.
+     *
+     * @param data
+     */
+    public void process(ByteBuffer data)
+    {
+        reset();
+        add(data, data.position(), data.limit());
+    }
+
+    /**
+     * Counts every byte of a file, replacing previous counts. The file is
+     * mapped a region at a time rather than read onto the heap.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void process(Path file) throws IOException
+    {
+        reset();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAPPED_REGION_SIZE)
+            {
+                int regionSize = (int) Math.min(MAPPED_REGION_SIZE, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                add(region, 0, regionSize);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * How many times a byte value was seen.
+     *
+     * @param b a byte value, 0 to 255 (a Java byte is masked for you)
+     * @return
+     */
+    public long getCount(int b)
+    {
+        return results[b & 0xFF];
+    }
+
+    /**
+     * A copy of all 256 counts.
+     */
+    public long[] getCounts()
+    {
+        return results.clone();
+    }
+
+    /**
+     * An immutable copy of the current counts, for merging with others.
+     */
+    public HistogramSnapshot snapshot()
+    {
+        return HistogramSnapshot.wrap(results.clone());
+    }
+
+    /**
+     * Displays histogram contents.
+     */
+    public void display()
+    {
+        for (int i = 0; i < results.length; ++i)
+        {
+            System.out.println(results[i]);
+        }
+    }
+
+    /**
+     * Resets histogram to all zeros.
+     */
+    public void reset()
+    {
+        Arrays.fill(results, 0);
+    }
+
+    private void add(ByteBuffer data, int from, int to)
+    {
+        long[] counts;
+        if (engine == null || to - from < doNotMultiThreadIfLessThan)
+        {
+            counts = new long[256];
+            count(data, from, to, counts);
+        }
+        else
+        {
+            counts = engine.getPool().invoke(new Task(data, from, to));
+        }
+        for (int i = 0; i < results.length; ++i)
+        {
+            results[i] += counts[i];
+        }
+    }
+
+    /**
+     * The counting loop. Absolute gets only, so the buffer can be shared.
+     */
+    static void count(ByteBuffer data, int from, int to, long[] output)
+    {
+        for (int i = from; i < to; ++i)
+        {
+            output[data.get(i) & 0xFF]++;
+        }
+    }
+
+    private class Task extends RecursiveTask<long[]>
+    {
+        private final ByteBuffer data;
+        private final int from;
+        private final int to;
+
+        Task(ByteBuffer data, int from, int to)
+        {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute()
+        {
+            if (to - from <= doNotMultiThreadIfLessThan)
+            {
+                long[] output = new long[256];
+                count(data, from, to, output);
+                return output;
+            }
+
+            int middle = (from + to) >>> 1;
+            Task left = new Task(data, from, middle);
+            left.fork();
+            long[] output = new Task(data, middle, to).compute();
+            long[] other = left.join();
+            for (int i = 0; i < output.length; ++i)
+            {
+                output[i] += other[i];
+            }
+            return output;
+        }
+    }
+}
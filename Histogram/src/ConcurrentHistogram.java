@@ -0,0 +1,145 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An ASCII histogram that lots of threads can record into at once while
+ * another thread watches it, with no locks anywhere.
+ * <p>
+ * Counts are kept in several stripes, each a full set of 128 buckets, and
+ * a thread always records into the stripe picked by its id. With at least
+ * as many stripes as cores, writers mostly have a stripe to themselves.
+ * Stripes sit in one array with padding between them so two stripes never
+ * share a cache line, which would have the cores fighting over that line
+ * anyway (false sharing).
+ * <p>
+ * A chunk is first counted into a private array with the normal counting
+ * loop, and only the non-zero buckets are added to the stripe, so a long
+ * chunk costs at most 128 atomic adds.
+ */
+public class ConcurrentHistogram
+{
+    // 16 longs = 128 bytes; covers a cache line plus the adjacent-line prefetcher.
+    private static final int PADDING = 16;
+    private static final int STRIDE = 128 + PADDING;
+
+    private final AtomicLongArray counts;
+    private final int stripeMask;
+
+    // Per-thread scratch for counting a chunk before it is published.
+    private final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[128];
+        }
+    };
+
+    /**
+     * Creates a histogram with about two stripes per processor.
+     */
+    public ConcurrentHistogram()
+    {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param stripes rounded up to a power of two
+     */
+    public ConcurrentHistogram(int stripes)
+    {
+        int n = 1;
+        while (n < stripes)
+        {
+            n *= 2;
+        }
+        stripeMask = n - 1;
+        // Leading padding too, so stripe 0 doesn't share a line with the array header.
+        counts = new AtomicLongArray(PADDING + n * STRIDE);
+    }
+
+    /**
+     * Records one character. (Non-ASCII characters are all recorded as 127.)
+     *
+     * @param ch
+     */
+    public void record(char ch)
+    {
+        counts.getAndIncrement(stripeBase() + Math.min(ch, 127));
+    }
+
+    /**
+     * Records text[offset..offset+length).
+     *
+     * @param text
+     * @param offset
+     * @param length
+     */
+    public void record(char[] text, int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset + length > text.length)
+        {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+                    + ", array " + text.length);
+        }
+
+        int[] local = scratch.get();
+        Histogram.countChars(text, offset, offset + length, local);
+
+        int base = stripeBase();
+        for (int i = 0; i < 128; ++i)
+        {
+            int c = local[i];
+            if (c != 0)
+            {
+                counts.getAndAdd(base + i, c);
+                local[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Adds up the stripes. Writers are never blocked; each bucket is exact as
+     * of the moment it was read, but records that land while the snapshot is
+     * being taken may show up in some buckets and not yet in others.
+     */
+    public HistogramSnapshot snapshot()
+    {
+        long[] sum = new long[128];
+        for (int stripe = 0; stripe <= stripeMask; ++stripe)
+        {
+            int base = PADDING + stripe * STRIDE;
+            for (int i = 0; i < 128; ++i)
+            {
+                sum[i] += counts.get(base + i);
+            }
+        }
+        return HistogramSnapshot.wrap(sum);
+    }
+
+    /**
+     * Takes a snapshot and zeroes the counts in one pass. Every record ends
+     * up in exactly one snapshot, so this is the safe way to report deltas
+     * while writers keep going.
+     */
+    public HistogramSnapshot snapshotAndReset()
+    {
+        long[] sum = new long[128];
+        for (int stripe = 0; stripe <= stripeMask; ++stripe)
+        {
+            int base = PADDING + stripe * STRIDE;
+            for (int i = 0; i < 128; ++i)
+            {
+                sum[i] += counts.getAndSet(base + i, 0);
+            }
+        }
+        return HistogramSnapshot.wrap(sum);
+    }
+
+    private int stripeBase()
+    {
+        // Thread ids are handed out sequentially, mix them so neighbours spread out.
+        long id = Thread.currentThread().getId();
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return PADDING + (h & stripeMask) * STRIDE;
+    }
+}
@@ -0,0 +1,153 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The inner counting loops, one per strategy.
+ * <p>
+ * SIMPLE is the original one-increment-per-character loop. On text where
+ * a few characters dominate (spaces, 'e', ...) neighbouring characters
+ * keep hitting the same slot, and each increment has to wait for the
+ * previous store to that slot to finish. MULTI_BANK spreads consecutive
+ * characters over four separate sub-histograms so those increments don't
+ * depend on each other, then adds the banks together at the end.
+ * <p>
+ * The kernel everybody uses is picked with Histogram.setKernel(), or the
+ * histogram.kernel system property at startup.
+ */
+public enum CountingKernel
+{
+    SIMPLE
+    {
+        @Override
+        void countChars(char[] text, int from, int to, int[] output)
+        {
+            for (int i = from; i < to; ++i)
+            {
+                int ch = text[i];
+                if (ch >= 127){
+                    output[127]++;
+                }
+                else
+                {
+                    output[ch]++;
+                }
+            }
+        }
+
+        @Override
+        void countBytes(ByteBuffer bytes, int from, int to, int[] output)
+        {
+            for (int i = from; i < to; ++i)
+            {
+                int b = bytes.get(i) & 0xFF;
+                if (b >= 127){
+                    output[127]++;
+                }
+                else
+                {
+                    output[b]++;
+                }
+            }
+        }
+    },
+
+    MULTI_BANK
+    {
+        @Override
+        void countChars(char[] text, int from, int to, int[] output)
+        {
+            // Four banks of 128 back to back; character i goes to bank i % 4.
+            int[] banks = BANK_SCRATCH.get();
+            Arrays.fill(banks, 0);
+            int i = from;
+            int unrolledEnd = from + ((to - from) & ~(BANKS - 1));
+            for (; i < unrolledEnd; i += BANKS)
+            {
+                banks[Math.min(text[i], 127)]++;
+                banks[128 + Math.min(text[i + 1], 127)]++;
+                banks[256 + Math.min(text[i + 2], 127)]++;
+                banks[384 + Math.min(text[i + 3], 127)]++;
+            }
+            for (; i < to; ++i)
+            {
+                banks[Math.min(text[i], 127)]++;
+            }
+            mergeBanks(banks, output);
+        }
+
+        @Override
+        void countBytes(ByteBuffer bytes, int from, int to, int[] output)
+        {
+            int[] banks = BANK_SCRATCH.get();
+            Arrays.fill(banks, 0);
+            int i = from;
+            int unrolledEnd = from + ((to - from) & ~(BANKS - 1));
+            for (; i < unrolledEnd; i += BANKS)
+            {
+                banks[Math.min(bytes.get(i) & 0xFF, 127)]++;
+                banks[128 + Math.min(bytes.get(i + 1) & 0xFF, 127)]++;
+                banks[256 + Math.min(bytes.get(i + 2) & 0xFF, 127)]++;
+                banks[384 + Math.min(bytes.get(i + 3) & 0xFF, 127)]++;
+            }
+            for (; i < to; ++i)
+            {
+                banks[Math.min(bytes.get(i) & 0xFF, 127)]++;
+            }
+            mergeBanks(banks, output);
+        }
+    };
+
+    private static final int BANKS = 4;
+
+    // Per-thread banks, so counting a chunk allocates nothing. Cleared at the
+    // start of every call rather than the end, in case the last one threw.
+    private static final ThreadLocal<int[]> BANK_SCRATCH = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[BANKS * 128];
+        }
+    };
+
+    /**
+     * Counts text[from..to) into output, adding to what is already there.
+     * Non-ASCII characters are all recorded as 127.
+     */
+    abstract void countChars(char[] text, int from, int to, int[] output);
+
+    /**
+     * Counts bytes[from..to) into output, one byte per character, adding to
+     * what is already there. Absolute gets only, so the buffer can be shared.
+     */
+    abstract void countBytes(ByteBuffer bytes, int from, int to, int[] output);
+
+    private static void mergeBanks(int[] banks, int[] output)
+    {
+        for (int i = 0; i < 128; ++i)
+        {
+            output[i] += banks[i] + banks[128 + i] + banks[256 + i] + banks[384 + i];
+        }
+    }
+
+    /**
+     * The kernel named by the histogram.kernel system property, or SIMPLE.
+     */
+    static CountingKernel fromSystemProperty()
+    {
+        String name = System.getProperty("histogram.kernel");
+        if (name == null)
+        {
+            return SIMPLE;
+        }
+        try
+        {
+            return valueOf(name.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println("Unknown histogram.kernel " + name + ", using SIMPLE");
+            return SIMPLE;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts characters across every file in a directory tree.
+ * <p>
+ * Trees tend to be lopsided: lots of tiny files and a few huge ones. So
+ * small files are grouped into batches that make one task each, and big
+ * files are cut into ranges that are counted separately. All of those
+ * units go into the engine's ForkJoinPool as a tree of halving tasks, so
+ * idle threads steal whatever is left instead of waiting on one slow file.
+ * <p>
+ * Counting is the same as Histogram.process(Path): one byte per
+ * character, with 127 and up all recorded as 127.
+ * <p>
+ * With a HistogramCache, files it still has results for are not read at
+ * all; only new and changed files are counted, and their results go into
+ * the cache for next time.
+ */
+public class DirectoryHistogram
+{
+    /**
+     * Files smaller than this are read whole and batched with others.
+     */
+    static final long SMALL_FILE_SIZE = 1024 * 1024;
+
+    /**
+     * About how many bytes of small files go into one task.
+     */
+    static final long BATCH_SIZE = 4L * 1024 * 1024;
+
+    /**
+     * Bigger files are cut into ranges of this size, each mapped on its own.
+     */
+    static final long RANGE_SIZE = 16L * 1024 * 1024;
+
+    private final HistogramEngine engine;
+    private boolean keepPerFileResults;
+    private HistogramCache cache;
+
+    /**
+     * @param engine whose pool does the counting; not closed by this class
+     */
+    public DirectoryHistogram(HistogramEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Whether process() should also hand back a histogram for each file.
+     * Off by default, since a few hundred thousand of them add up.
+     *
+     * @param keepPerFileResults
+     */
+    public void setKeepPerFileResults(boolean keepPerFileResults)
+    {
+        this.keepPerFileResults = keepPerFileResults;
+    }
+
+    /**
+     * Uses a cache for files that haven't changed since it last saw them.
+     * Saving it is up to the caller.
+     *
+     * @param cache or null for none
+     */
+    public void setCache(HistogramCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Walks the tree under root and counts every regular file in it.
+     *
+     * @param root
+     * @return the merged histogram, plus per-file ones if asked for
+     * @throws IOException if walking the tree or reading a file fails
+     */
+    public Result process(Path root) throws IOException
+    {
+        final List<Path> files = new ArrayList<Path>();
+        final List<Long> sizes = new ArrayList<Long>();
+        final List<Long> modified = new ArrayList<Long>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile())
+                {
+                    files.add(file);
+                    sizes.add(attrs.size());
+                    modified.add(attrs.lastModifiedTime().toMillis());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        long totalBytes = 0;
+        for (long size : sizes)
+        {
+            totalBytes += size;
+        }
+
+        // Whatever the cache already has doesn't need counting.
+        Map<Path, HistogramSnapshot> cached = new HashMap<Path, HistogramSnapshot>();
+        List<Path> toCount = files;
+        List<Long> toCountSizes = sizes;
+        List<Long> toCountModified = modified;
+        if (cache != null)
+        {
+            toCount = new ArrayList<Path>();
+            toCountSizes = new ArrayList<Long>();
+            toCountModified = new ArrayList<Long>();
+            for (int i = 0; i < files.size(); ++i)
+            {
+                HistogramSnapshot hit = cache.get(files.get(i), sizes.get(i), modified.get(i));
+                if (hit != null)
+                {
+                    cached.put(files.get(i), hit);
+                    continue;
+                }
+                toCount.add(files.get(i));
+                toCountSizes.add(sizes.get(i));
+                toCountModified.add(modified.get(i));
+            }
+        }
+
+        // The cache needs each counted file's own result.
+        boolean keepPerFile = keepPerFileResults || cache != null;
+        List<Unit> units = plan(toCount, toCountSizes);
+        Partial partial;
+        try
+        {
+            partial = units.isEmpty()
+                    ? new Partial(keepPerFile)
+                    : engine.getPool().invoke(new UnitTask(units, 0, units.size(), keepPerFile));
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        if (cache != null)
+        {
+            for (int i = 0; i < toCount.size(); ++i)
+            {
+                long[] counts = partial.perFile.get(toCount.get(i));
+                cache.put(toCount.get(i), toCountSizes.get(i), toCountModified.get(i),
+                        counts == null ? HistogramSnapshot.empty(128) : HistogramSnapshot.wrap(counts));
+            }
+            for (HistogramSnapshot hit : cached.values())
+            {
+                for (int i = 0; i < partial.totals.length; ++i)
+                {
+                    partial.totals[i] += hit.getCount(i);
+                }
+            }
+        }
+
+        Map<Path, HistogramSnapshot> perFile = null;
+        if (keepPerFileResults)
+        {
+            perFile = new HashMap<Path, HistogramSnapshot>(cached);
+            for (Map.Entry<Path, long[]> entry : partial.perFile.entrySet())
+            {
+                perFile.put(entry.getKey(), HistogramSnapshot.wrap(entry.getValue()));
+            }
+            // Empty files never produce a partial, but they were still seen.
+            for (Path file : files)
+            {
+                if (!perFile.containsKey(file))
+                {
+                    perFile.put(file, HistogramSnapshot.empty(128));
+                }
+            }
+        }
+
+        return new Result(HistogramSnapshot.wrap(partial.totals), perFile, files.size(), totalBytes, cached.size());
+    }
+
+    /**
+     * Turns the file list into units of roughly even size: batches of
+     * small files and ranges of large ones.
+     */
+    private static List<Unit> plan(List<Path> files, List<Long> sizes)
+    {
+        List<Unit> units = new ArrayList<Unit>();
+        List<Path> batch = new ArrayList<Path>();
+        long batchBytes = 0;
+
+        for (int i = 0; i < files.size(); ++i)
+        {
+            Path file = files.get(i);
+            long size = sizes.get(i);
+
+            if (size < SMALL_FILE_SIZE)
+            {
+                batch.add(file);
+                batchBytes += size;
+                if (batchBytes >= BATCH_SIZE)
+                {
+                    units.add(Unit.batch(batch));
+                    batch = new ArrayList<Path>();
+                    batchBytes = 0;
+                }
+                continue;
+            }
+
+            for (long position = 0; position < size; position += RANGE_SIZE)
+            {
+                units.add(Unit.range(file, position, Math.min(RANGE_SIZE, size - position)));
+            }
+        }
+        if (!batch.isEmpty())
+        {
+            units.add(Unit.batch(batch));
+        }
+        return units;
+    }
+
+    /**
+     * What process() found.
+     */
+    public static class Result
+    {
+        private final HistogramSnapshot total;
+        private final Map<Path, HistogramSnapshot> perFile;
+        private final long files;
+        private final long bytes;
+        private final long cachedFiles;
+
+        Result(HistogramSnapshot total, Map<Path, HistogramSnapshot> perFile, long files, long bytes,
+               long cachedFiles)
+        {
+            this.total = total;
+            this.perFile = perFile == null ? null : Collections.unmodifiableMap(perFile);
+            this.files = files;
+            this.bytes = bytes;
+            this.cachedFiles = cachedFiles;
+        }
+
+        /**
+         * Everything merged together.
+         */
+        public HistogramSnapshot getTotal()
+        {
+            return total;
+        }
+
+        /**
+         * One histogram per file, or null if per-file results were not asked for.
+         */
+        public Map<Path, HistogramSnapshot> getPerFile()
+        {
+            return perFile;
+        }
+
+        public long getFiles()
+        {
+            return files;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * How many of the files came out of the cache instead of being counted.
+         */
+        public long getCachedFiles()
+        {
+            return cachedFiles;
+        }
+    }
+
+    // A piece of work: either several whole small files, or one range of a big file.
+    private static class Unit
+    {
+        final List<Path> batch;
+        final Path file;
+        final long position;
+        final long length;
+
+        private Unit(List<Path> batch, Path file, long position, long length)
+        {
+            this.batch = batch;
+            this.file = file;
+            this.position = position;
+            this.length = length;
+        }
+
+        static Unit batch(List<Path> files)
+        {
+            return new Unit(files, null, 0, 0);
+        }
+
+        static Unit range(Path file, long position, long length)
+        {
+            return new Unit(null, file, position, length);
+        }
+    }
+
+    // Counts coming back up the task tree.
+    private static class Partial
+    {
+        final long[] totals = new long[128];
+        final Map<Path, long[]> perFile;
+
+        Partial(boolean keepPerFile)
+        {
+            perFile = keepPerFile ? new HashMap<Path, long[]>() : null;
+        }
+
+        void add(Path file, int[] counts)
+        {
+            long[] mine = null;
+            if (perFile != null)
+            {
+                mine = perFile.get(file);
+                if (mine == null)
+                {
+                    mine = new long[128];
+                    perFile.put(file, mine);
+                }
+            }
+            for (int i = 0; i < counts.length; ++i)
+            {
+                totals[i] += counts[i];
+                if (mine != null)
+                {
+                    mine[i] += counts[i];
+                }
+            }
+        }
+
+        void merge(Partial other)
+        {
+            for (int i = 0; i < totals.length; ++i)
+            {
+                totals[i] += other.totals[i];
+            }
+            if (perFile == null)
+            {
+                return;
+            }
+            // Ranges of the same big file can come back from different tasks.
+            for (Map.Entry<Path, long[]> entry : other.perFile.entrySet())
+            {
+                long[] mine = perFile.get(entry.getKey());
+                if (mine == null)
+                {
+                    perFile.put(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                long[] theirs = entry.getValue();
+                for (int i = 0; i < mine.length; ++i)
+                {
+                    mine[i] += theirs[i];
+                }
+            }
+        }
+    }
+
+    private class UnitTask extends RecursiveTask<Partial>
+    {
+        private final List<Unit> units;
+        private final int from;
+        private final int to;
+        private final boolean keepPerFile;
+
+        UnitTask(List<Unit> units, int from, int to, boolean keepPerFile)
+        {
+            this.units = units;
+            this.from = from;
+            this.to = to;
+            this.keepPerFile = keepPerFile;
+        }
+
+        @Override
+        protected Partial compute()
+        {
+            if (to - from == 1)
+            {
+                try
+                {
+                    return count(units.get(from));
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            int middle = (from + to) >>> 1;
+            UnitTask left = new UnitTask(units, from, middle, keepPerFile);
+            left.fork();
+            Partial output = new UnitTask(units, middle, to, keepPerFile).compute();
+            output.merge(left.join());
+            return output;
+        }
+
+        private Partial count(Unit unit) throws IOException
+        {
+            Partial output = new Partial(keepPerFile);
+            if (unit.file != null)
+            {
+                FileChannel channel = FileChannel.open(unit.file, StandardOpenOption.READ);
+                try
+                {
+                    MappedByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY, unit.position, unit.length);
+                    int[] counts = new int[128];
+                    Histogram.countBytes(range, 0, (int) unit.length, counts);
+                    output.add(unit.file, counts);
+                }
+                finally
+                {
+                    channel.close();
+                }
+                return output;
+            }
+
+            // Small files: mapping costs more than reading, so read them into one reused buffer.
+            ByteBuffer buffer = ByteBuffer.allocate((int) SMALL_FILE_SIZE);
+            for (Path file : unit.batch)
+            {
+                buffer.clear();
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                try
+                {
+                    // The file may have grown since the walk; only the part that fits is counted.
+                    while (buffer.hasRemaining() && channel.read(buffer) != -1)
+                    {
+                    }
+                }
+                finally
+                {
+                    channel.close();
+                }
+                if (buffer.position() == 0)
+                {
+                    continue;
+                }
+                int[] counts = new int[128];
+                Histogram.countBytes(buffer, 0, buffer.position(), counts);
+                output.add(file, counts);
+            }
+            return output;
+        }
+    }
+}
@@ -0,0 +1,613 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coordinates a histogram across HistogramWorker processes, on this
+ * machine or others, for corpora too big for one JVM.
+ * <p>
+ * Every file is cut into shards (whole small files, fixed size ranges of
+ * big ones) and the shards go into one queue. Each worker has a
+ * connection that keeps a couple of shards in flight and pulls the next
+ * one as soon as a result comes back, so fast workers end up doing more.
+ * Results carry HistogramCodec encoded counts and are merged as they
+ * arrive.
+ * <p>
+ * A shard that fails is put back in the queue for any worker to retry, up
+ * to a limit. That covers a worker replying with an error, its connection
+ * dropping (every shard it had in flight is retried), and a shard taking
+ * longer than the timeout (the connection is dropped). The run only fails
+ * if a shard runs out of attempts or every worker is gone.
+ * <p>
+ * Workers open the files by the path the coordinator walked, so they need
+ * to see the corpus at the same path.
+ * <p>
+ * Usage: java DistributedHistogram path host:port [host:port ...]
+ */
+public class DistributedHistogram
+{
+    /**
+     * Files bigger than this are split; also the most one shard covers.
+     */
+    public static final long DEFAULT_SHARD_SIZE = 64L * 1024 * 1024;
+
+    private static final AtomicInteger nextId = new AtomicInteger(0);
+
+    private final List<InetSocketAddress> workers;
+    private long shardSize = DEFAULT_SHARD_SIZE;
+    private int maxAttempts = 3;
+    private int shardsInFlight = 2;
+    private long shardTimeoutMillis = 5 * 60 * 1000;
+    private int connectTimeoutMillis = 5000;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: java DistributedHistogram path host:port [host:port ...]");
+            return;
+        }
+        List<InetSocketAddress> workers = new ArrayList<InetSocketAddress>();
+        for (int i = 1; i < args.length; ++i)
+        {
+            int colon = args[i].lastIndexOf(':');
+            workers.add(new InetSocketAddress(args[i].substring(0, colon),
+                    Integer.parseInt(args[i].substring(colon + 1))));
+        }
+
+        long start = System.currentTimeMillis();
+        Result result = new DistributedHistogram(workers).process(Paths.get(args[0]));
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(result);
+        System.out.println("time: " + elapsed);
+        result.getTotal().display();
+    }
+
+    /**
+     * @param workers where HistogramWorkers are listening
+     */
+    public DistributedHistogram(List<InetSocketAddress> workers)
+    {
+        if (workers.isEmpty())
+        {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        this.workers = new ArrayList<InetSocketAddress>(workers);
+    }
+
+    public void setShardSize(long shardSize)
+    {
+        if (shardSize < 1 || shardSize > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Shard size out of range: " + shardSize);
+        }
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * How many times a shard is tried, in all, before the run gives up.
+     */
+    public void setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Shards sent to one worker before its first result comes back.
+     * More than one keeps a worker busy while results travel back.
+     */
+    public void setShardsInFlight(int shardsInFlight)
+    {
+        this.shardsInFlight = shardsInFlight;
+    }
+
+    /**
+     * A worker sitting on a shard longer than this is treated as dead.
+     */
+    public void setShardTimeoutMillis(long shardTimeoutMillis)
+    {
+        this.shardTimeoutMillis = shardTimeoutMillis;
+    }
+
+    /**
+     * Counts every regular file under root (or root itself, if it's a file).
+     *
+     * @param root
+     * @return
+     * @throws IOException if no worker can be reached, a shard fails too
+     *         often, or every worker is lost part way
+     */
+    public Result process(Path root) throws IOException
+    {
+        final List<ShardRequest> shards = new ArrayList<ShardRequest>();
+        final long[] files = new long[1];
+        final long[] bytes = new long[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile())
+                {
+                    files[0]++;
+                    bytes[0] += attrs.size();
+                    String path = file.toAbsolutePath().toString();
+                    for (long position = 0; position < attrs.size(); position += shardSize)
+                    {
+                        shards.add(new ShardRequest(nextId.getAndIncrement(), path, position,
+                                Math.min(shardSize, attrs.size() - position)));
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Job job = new Job(shards);
+        List<Link> links = new ArrayList<Link>();
+        try
+        {
+            if (!shards.isEmpty())
+            {
+                for (InetSocketAddress address : workers)
+                {
+                    try
+                    {
+                        links.add(new Link(address, job));
+                    }
+                    catch (IOException e)
+                    {
+                        System.out.println("Worker " + address + " unreachable: " + e);
+                    }
+                }
+                if (links.isEmpty())
+                {
+                    throw new IOException("None of the " + workers.size() + " workers could be reached");
+                }
+                for (Link link : links)
+                {
+                    link.start();
+                }
+                job.await(links);
+            }
+        }
+        finally
+        {
+            job.finish();
+            for (Link link : links)
+            {
+                link.close(null);
+            }
+        }
+
+        return new Result(HistogramSnapshot.wrap(job.totals), files[0], bytes[0], shards.size(),
+                job.retries, links.size());
+    }
+
+    /**
+     * One run's shared state: the shards still to send, the running totals,
+     * and whether it's over. Guarded by its own lock.
+     */
+    private class Job
+    {
+        final BlockingQueue<ShardRequest> todo;
+        final Map<Integer, Integer> attempts = new ConcurrentHashMap<Integer, Integer>();
+        final long[] totals = new long[128];
+        // One result decoded on its own, before it goes into the totals.
+        final long[] decoded = new long[128];
+        int remaining;
+        int retries;
+        IOException failure;
+        boolean over;
+
+        Job(List<ShardRequest> shards)
+        {
+            todo = new LinkedBlockingQueue<ShardRequest>(shards);
+            remaining = shards.size();
+        }
+
+        synchronized boolean isOver()
+        {
+            return over;
+        }
+
+        synchronized void finish()
+        {
+            over = true;
+            notifyAll();
+        }
+
+        synchronized void succeeded(ShardRequest shard, ShardResult result, String from)
+        {
+            if (over)
+            {
+                return;
+            }
+            // Decode it apart first, so a malformed result is retried like any
+            // other failure and leaves nothing half added to the totals.
+            Arrays.fill(decoded, 0);
+            try
+            {
+                HistogramCodec.mergeInto(ByteBuffer.wrap(result.getCounts()), decoded);
+            }
+            catch (RuntimeException e)
+            {
+                failed(shard, from + ": unreadable result: " + e);
+                return;
+            }
+            for (int i = 0; i < totals.length; ++i)
+            {
+                totals[i] += decoded[i];
+            }
+            if (--remaining == 0)
+            {
+                over = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void failed(ShardRequest shard, String why)
+        {
+            if (over)
+            {
+                return;
+            }
+            Integer tried = attempts.get(shard.getId());
+            int attempt = tried == null ? 1 : tried + 1;
+            attempts.put(shard.getId(), attempt);
+            if (attempt >= maxAttempts)
+            {
+                failure = new IOException("Shard " + shard + " failed " + attempt + " times, last: " + why);
+                over = true;
+                notifyAll();
+                return;
+            }
+            retries++;
+            todo.add(shard);
+        }
+
+        /**
+         * Waits for the last result, dropping connections that sit on a
+         * shard too long, until it's done or there's no one left to do it.
+         */
+        void await(List<Link> links) throws IOException
+        {
+            while (true)
+            {
+                synchronized (this)
+                {
+                    if (over)
+                    {
+                        break;
+                    }
+                    try
+                    {
+                        wait(100);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for workers");
+                    }
+                }
+
+                // Not holding the job's lock here, since closing a link calls failed().
+                boolean anyAlive = false;
+                long now = System.nanoTime();
+                for (Link link : links)
+                {
+                    link.closeIfStale(now);
+                    anyAlive |= link.isAlive();
+                }
+                if (!anyAlive)
+                {
+                    synchronized (this)
+                    {
+                        if (!over)
+                        {
+                            failure = new IOException("Lost every worker with " + remaining + " shards to go");
+                            over = true;
+                        }
+                    }
+                }
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * The connection to one worker. A sender thread feeds it shards from
+     * the queue while a reader thread takes results off it, matching them
+     * to requests by correlation id.
+     */
+    private class Link
+    {
+        private final InetSocketAddress address;
+        private final Job job;
+        private final Socket s;
+        private final ObjectOutputStream oos;
+        private final ObjectInputStream ois;
+        private final Semaphore window = new Semaphore(shardsInFlight);
+        // request id -> request, and when it was sent
+        private final Map<Integer, ShardRequest> pending = new ConcurrentHashMap<Integer, ShardRequest>();
+        private final Map<Integer, Long> sentAt = new ConcurrentHashMap<Integer, Long>();
+        private volatile boolean alive = true;
+
+        Link(InetSocketAddress address, Job job) throws IOException
+        {
+            this.address = address;
+            this.job = job;
+            this.s = new Socket();
+            try
+            {
+                s.connect(address, connectTimeoutMillis);
+                // Results are small and we wait on each one; don't let Nagle hold them back.
+                s.setTcpNoDelay(true);
+                oos = new ObjectOutputStream(s.getOutputStream());
+                oos.flush();
+                // Something that accepts but never answers shouldn't hang us here.
+                s.setSoTimeout(connectTimeoutMillis);
+                ois = new ObjectInputStream(s.getInputStream());
+                s.setSoTimeout(0);
+            }
+            catch (IOException e)
+            {
+                s.close();
+                throw e;
+            }
+        }
+
+        void start()
+        {
+            Thread sender = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    send();
+                }
+            }, "histogram-sender-" + address);
+            Thread reader = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    read();
+                }
+            }, "histogram-reader-" + address);
+            sender.setDaemon(true);
+            reader.setDaemon(true);
+            sender.start();
+            reader.start();
+        }
+
+        boolean isAlive()
+        {
+            return alive;
+        }
+
+        private void send()
+        {
+            try
+            {
+                while (alive && !job.isOver())
+                {
+                    if (!window.tryAcquire(100, TimeUnit.MILLISECONDS))
+                    {
+                        continue;
+                    }
+                    ShardRequest shard = job.todo.poll(100, TimeUnit.MILLISECONDS);
+                    if (shard == null)
+                    {
+                        window.release();
+                        continue;
+                    }
+
+                    pending.put(shard.getId(), shard);
+                    sentAt.put(shard.getId(), System.nanoTime());
+                    if (!alive)
+                    {
+                        // Closed since the poll; if close() didn't already hand it back, we do.
+                        if (pending.remove(shard.getId()) != null)
+                        {
+                            sentAt.remove(shard.getId());
+                            job.todo.add(shard);
+                        }
+                        return;
+                    }
+                    synchronized (this)
+                    {
+                        oos.writeObject(shard);
+                        oos.reset();
+                        oos.flush();
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                close(e.toString());
+            }
+            catch (IOException e)
+            {
+                close(e.toString());
+            }
+        }
+
+        private void read()
+        {
+            try
+            {
+                while (true)
+                {
+                    ShardResult result = (ShardResult) ois.readObject();
+                    ShardRequest shard = pending.remove(result.getCorrelationId());
+                    sentAt.remove(result.getCorrelationId());
+                    if (shard == null)
+                    {
+                        // Already given up on and retried elsewhere.
+                        continue;
+                    }
+                    window.release();
+                    if (result.getError() != null)
+                    {
+                        job.failed(shard, address + ": " + result.getError());
+                    }
+                    else
+                    {
+                        job.succeeded(shard, result, address.toString());
+                    }
+                }
+            }
+            catch (ClassNotFoundException e)
+            {
+                close(e.toString());
+            }
+            catch (IOException e)
+            {
+                close(e.toString());
+            }
+            catch (RuntimeException e)
+            {
+                // Whatever it was, this reader is gone, so the link must go too.
+                close(e.toString());
+            }
+        }
+
+        void closeIfStale(long now)
+        {
+            for (Long sent : sentAt.values())
+            {
+                if (now - sent > TimeUnit.MILLISECONDS.toNanos(shardTimeoutMillis))
+                {
+                    close(new SocketTimeoutException("No result from " + address + " in "
+                            + shardTimeoutMillis + " ms").toString());
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Drops the connection and hands whatever it had in flight back to
+         * the queue. Safe to call more than once.
+         *
+         * @param why null when the run is simply over
+         */
+        void close(String why)
+        {
+            synchronized (this)
+            {
+                if (!alive)
+                {
+                    return;
+                }
+                alive = false;
+            }
+            if (why != null && !job.isOver())
+            {
+                System.out.println("Dropping worker " + address + ": " + why);
+            }
+            try
+            {
+                s.close();
+            }
+            catch (IOException ignore) {}
+
+            for (Integer id : new ArrayList<Integer>(pending.keySet()))
+            {
+                ShardRequest shard = pending.remove(id);
+                sentAt.remove(id);
+                if (shard != null)
+                {
+                    window.release();
+                    job.failed(shard, address + ": " + why);
+                }
+            }
+        }
+    }
+
+    /**
+     * What a distributed run counted, and how it went.
+     */
+    public static class Result
+    {
+        private final HistogramSnapshot total;
+        private final long files;
+        private final long bytes;
+        private final int shards;
+        private final int retries;
+        private final int workers;
+
+        Result(HistogramSnapshot total, long files, long bytes, int shards, int retries, int workers)
+        {
+            this.total = total;
+            this.files = files;
+            this.bytes = bytes;
+            this.shards = shards;
+            this.retries = retries;
+            this.workers = workers;
+        }
+
+        public HistogramSnapshot getTotal()
+        {
+            return total;
+        }
+
+        public long getFiles()
+        {
+            return files;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public int getShards()
+        {
+            return shards;
+        }
+
+        /**
+         * Shards that had to be sent again after a failure.
+         */
+        public int getRetries()
+        {
+            return retries;
+        }
+
+        /**
+         * Workers that could be reached at the start.
+         */
+        public int getWorkers()
+        {
+            return workers;
+        }
+
+        @Override
+        public String toString()
+        {
+            return files + " files, " + bytes + " bytes in " + shards + " shards on " + workers
+                    + " workers, " + retries + " retries";
+        }
+    }
+}
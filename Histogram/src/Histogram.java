@@ -1,32 +1,178 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * Creates a histogram of ASCII character counts for text files.
  */
 public class Histogram
 {
+    /**
+     * How much of a file gets mapped into memory at once by process(Path).
+     * A region has to fit in an int index anyway, and 64MB keeps the
+     * address space we hold onto reasonable even for multi-GB files.
+     */
+    private static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Which inner loop every worker, engine and accumulator counts with.
+     */
+    private static volatile CountingKernel kernel = CountingKernel.fromSystemProperty();
+
     /**
      * The histogram.
      */
     private int[] results = new int[128];
 
+    // Bumped whenever results change, so index() knows when to rebuild.
+    private int modCount;
+    private HistogramIndex index;
+    private int indexModCount;
+
     // After a little bit of testing, I realized that doing the thread and thread pool
     // only added overhead for character lengths less than about 10,000 on my
     // 8 core - Core i7 processor. I am sure this number is different
     // per architecture and CPU.
+    // HistogramCalibration can measure the real number for this machine,
+    // see applyProfile().
     private int doNotMultiThreadIfLessThan = 1000;
 
-    public static void main(String[] args)
+    // One partition per processor unless a calibrated profile says otherwise.
+    private int numberOfPartitions = Runtime.getRuntime().availableProcessors();
+
+    // How often processAsync() tells its listener how it's going.
+    private long progressIntervalMillis = 500;
+
+    // Whether process() times itself; see HistogramProbe. A JFR recording
+    // with the Histogram events on turns it on too.
+    private boolean metricsEnabled = Boolean.getBoolean("histogram.metrics");
+    private volatile HistogramMetrics lastMetrics;
+
+    /**
+     * Optional shared engine. When this is set, process() hands the work to
+     * the engine's long-lived pool instead of spinning up a pool per call.
+     */
+    private HistogramEngine engine;
+
+    /**
+     * Creates a histogram that starts a fresh thread pool on every process() call.
+     */
+    public Histogram()
     {
+    }
+
+    /**
+     * Creates a histogram that does all of its counting on a shared engine.
+     * The engine is not closed by this histogram.
+     *
+     * @param engine
+     */
+    public Histogram(HistogramEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        Histogram h = new Histogram();
+
+        // Use this machine's numbers if they've been measured. Measuring
+        // takes a while and writes to the home directory, so it only
+        // happens when asked for with --calibrate.
+        List<String> rest = new ArrayList<String>(Arrays.asList(args));
+        Path profileFile = HistogramProfile.defaultLocation();
+        if (rest.remove("--calibrate"))
+        {
+            System.out.println("Calibrating...");
+            HistogramProfile profile = HistogramCalibration.calibrate();
+            profile.save(profileFile);
+            System.out.println("Saved " + profile + " to " + profileFile);
+            h.applyProfile(profile);
+        }
+        else
+        {
+            try
+            {
+                HistogramProfile profile = HistogramProfile.load(profileFile);
+                if (profile != null && profile.matchesThisMachine())
+                {
+                    h.applyProfile(profile);
+                }
+            }
+            catch (IOException e)
+            {
+                // A profile only makes things faster; counting doesn't need one.
+                System.out.println("Ignoring unreadable profile " + profileFile + ": " + e.getMessage()
+                        + "; using the defaults (rerun with --calibrate to replace it)");
+            }
+        }
+        args = rest.toArray(new String[0]);
+
+        // If we were handed a file, just count that instead of the fake data.
+        if (args.length > 0)
+        {
+            Path input = Paths.get(args[0]);
+            long start = System.currentTimeMillis();
+
+            // A whole directory tree gets spread over a work-stealing pool.
+            if (Files.isDirectory(input))
+            {
+                HistogramEngine engine = new HistogramEngine();
+                try
+                {
+                    DirectoryHistogram directory = new DirectoryHistogram(engine);
+                    // -Dhistogram.cache=<file> skips files that haven't changed since last time.
+                    String cacheFile = System.getProperty("histogram.cache");
+                    HistogramCache cache = null;
+                    if (cacheFile != null)
+                    {
+                        cache = HistogramCache.open(Paths.get(cacheFile), HistogramCache.DEFAULT_BUDGET);
+                        directory.setCache(cache);
+                    }
+                    DirectoryHistogram.Result result = directory.process(input);
+                    if (cache != null)
+                    {
+                        cache.save();
+                    }
+                    long elapsed = System.currentTimeMillis() - start;
+                    System.out.println(result.getFiles() + " files, " + result.getBytes() + " bytes, "
+                            + result.getCachedFiles() + " from cache");
+                    System.out.println("time: " + elapsed);
+                    result.getTotal().display();
+                }
+                finally
+                {
+                    engine.close();
+                }
+                return;
+            }
+
+            h.process(input);
+            long elapsed = System.currentTimeMillis() - start;
+            System.out.println("time: " + elapsed);
+            h.display();
+            return;
+        }
 
         System.out.println("Generating some data...");
 
         // YMMV, adjust this number as you see fit
         char[] text = generate(1000000);
-        Histogram h = new Histogram();
 
         System.gc();
         System.out.println("Starting...");
@@ -42,6 +188,10 @@ public class Histogram
         h.process(text);
         elapsed = System.currentTimeMillis() - start;
         System.out.println("time: " + elapsed);
+        if (h.getLastMetrics() != null)
+        {
+            System.out.println(h.getLastMetrics());
+        }
 
         h.display();
     }
@@ -54,13 +204,9 @@ public class Histogram
      */
     public static char[] generate(int size)
     {
-        Random rand = new Random();
-        char[] text = new char[size];
-        for (int i = 0; i < size; ++i)
-        {
-            text[i] = (char) rand.nextInt(128);
-        }
-        return text;
+        // Filled in parallel now; HistogramDataGenerator has other shapes of text too.
+        return HistogramDataGenerator.generate(HistogramDataGenerator.Distribution.UNIFORM,
+                size, new SplittableRandom().nextLong());
     }
 
     /**
@@ -77,6 +223,128 @@ public class Histogram
         }
     }
 
+    /**
+     * How many times a character was seen. (Non-ASCII asks for bucket 127.)
+     *
+     * @param ch
+     * @return
+     */
+    public int getCount(int ch)
+    {
+        return results[Math.min(ch, 127)];
+    }
+
+    /**
+     * An immutable copy of the current counts, for merging with others.
+     */
+    public HistogramSnapshot snapshot()
+    {
+        return HistogramSnapshot.of(results);
+    }
+
+    /**
+     * Prefix sums and top-K over the current counts, for range, rank,
+     * quantile and top-K questions. Built on first use and reused until
+     * the histogram changes.
+     *
+     * @return
+     */
+    public HistogramIndex index()
+    {
+        if (index == null || indexModCount != modCount)
+        {
+            index = HistogramIndex.of(results);
+            indexModCount = modCount;
+        }
+        return index;
+    }
+
+    /**
+     * Switches the counting loop used everywhere from now on.
+     * See CountingKernel for what the choices are.
+     *
+     * @param kernel
+     */
+    public static void setKernel(CountingKernel kernel)
+    {
+        if (kernel == null)
+        {
+            throw new IllegalArgumentException("kernel");
+        }
+        Histogram.kernel = kernel;
+    }
+
+    public static CountingKernel getKernel()
+    {
+        return kernel;
+    }
+
+    /**
+     * Uses the threshold and partition count from a (calibrated) profile.
+     *
+     * @param profile
+     */
+    public void applyProfile(HistogramProfile profile)
+    {
+        setDoNotMultiThreadIfLessThan(profile.getDoNotMultiThreadIfLessThan());
+        setPartitions(profile.getPartitions());
+    }
+
+    /**
+     * Inputs shorter than this are counted on the calling thread.
+     *
+     * @param doNotMultiThreadIfLessThan
+     */
+    public void setDoNotMultiThreadIfLessThan(int doNotMultiThreadIfLessThan)
+    {
+        this.doNotMultiThreadIfLessThan = doNotMultiThreadIfLessThan;
+    }
+
+    /**
+     * How many pieces bigger inputs get cut into (and how many threads run them).
+     *
+     * @param numberOfPartitions
+     */
+    public void setPartitions(int numberOfPartitions)
+    {
+        if (numberOfPartitions < 1)
+        {
+            throw new IllegalArgumentException("Need at least one partition: " + numberOfPartitions);
+        }
+        this.numberOfPartitions = numberOfPartitions;
+    }
+
+    /**
+     * How often processAsync() reports progress.
+     *
+     * @param progressIntervalMillis
+     */
+    public void setProgressIntervalMillis(long progressIntervalMillis)
+    {
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    /**
+     * Turns per-partition timings for process(char[]) on or off. Off by
+     * default (or -Dhistogram.metrics=true), and when off, it costs one
+     * check per call.
+     *
+     * @param metricsEnabled
+     */
+    public void setMetricsEnabled(boolean metricsEnabled)
+    {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * Timings from the last instrumented process(char[]) run, or null if
+     * there hasn't been one. Runs handed to an engine aren't instrumented.
+     */
+    public HistogramMetrics getLastMetrics()
+    {
+        return lastMetrics;
+    }
+
     /**
      * Resets histogram to all zeros.
      */
@@ -86,6 +354,7 @@ public class Histogram
         {
             results[i] = 0;
         }
+        modCount++;
     }
 
     /**
@@ -96,13 +365,26 @@ public class Histogram
      */
     public void process(final char[] text)
     {
+        if (engine != null)
+        {
+            results = engine.count(text);
+            modCount++;
+            return;
+        }
+
         // After a little bit of testing, I realized that doing the thread and thread pool
         // only added overhead for character lengths less than about 10,000 on my
         // 8 core - Core i7 processor. I am sure this number is different
         // per architecture and CPU.
         if(text.length < this.doNotMultiThreadIfLessThan){
-            Worker smallSet = new Worker(text,0,text.length);
+            HistogramProbe probe = HistogramProbe.start(metricsEnabled, text.length, 1);
+            Worker smallSet = new Worker(text,0,text.length, probe, 0);
             results = smallSet.call(); // blocking, and normal – single thread.
+            modCount++;
+            if (probe != null)
+            {
+                lastMetrics = probe.finish();
+            }
             return;
         }
 
@@ -112,7 +394,10 @@ public class Histogram
         // (note: there would be a case if this was bound by some other factor
         //        such as I/O or something with a waiting time not determined
         //        by calculation/cpu.)
-        int numberOfThreadsToUse = Runtime.getRuntime().availableProcessors();
+        // (HistogramCalibration may have found a better number for this box.)
+        int numberOfThreadsToUse = this.numberOfPartitions;
+        // null unless someone is watching, see setMetricsEnabled()
+        HistogramProbe probe = HistogramProbe.start(metricsEnabled, text.length, numberOfThreadsToUse);
         // Initialize the thread pool that we are going to use
         ExecutorService pool = Executors.newFixedThreadPool(numberOfThreadsToUse);
 
@@ -129,23 +414,392 @@ public class Histogram
             for(int partitionSegment = 0; partitionSegment < numberOfThreadsToUse; partitionSegment++)
             {
                 int partitionStartsAt = partitionSegment * charactersPerPartition;
-                tasks.add(new Worker(text,partitionStartsAt, (partitionStartsAt + charactersPerPartition)));
+                // The last partition picks up whatever the rounding left over.
+                int partitionStopsAt = (partitionSegment == numberOfThreadsToUse - 1)
+                        ? text.length
+                        : partitionStartsAt + charactersPerPartition;
+                tasks.add(new Worker(text, partitionStartsAt, partitionStopsAt, probe, partitionSegment));
 
             }
 
             // Now I am going to add them all to my thread pool.
             //                                  and invokeAll() will block until
             //                                  all the callable's are done.
-            List<Future<int[]>> results = pool.invokeAll(tasks);
-            for(Future<int[]> partition : results)
+            if (probe != null)
+            {
+                probe.submitted();
+            }
+            List<Future<int[]>> partitions = pool.invokeAll(tasks);
+            if (probe != null)
+            {
+                probe.mergeStarted();
+            }
+            int[] totals = new int[128];
+            merge(totals, partitions);
+            this.results = totals;
+            modCount++;
+            if (probe != null)
+            {
+                lastMetrics = probe.finish();
+            }
+        }
+        catch (InterruptedException ignored) {ignored.printStackTrace();}
+        catch (ExecutionException ignored)   {ignored.printStackTrace();}
+
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Processes a file and records character counts, treating every byte
+     * as one character. (Bytes of 127 and up are all recorded as 127.)
+     * <p>
+     * The file is never decoded onto the heap. It is mapped a region at a
+     * time and each region is handed to the workers as raw bytes, so memory
+     * use stays flat no matter how big the file is.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void process(Path file) throws IOException
+    {
+        int numberOfThreadsToUse = this.numberOfPartitions;
+        ExecutorService pool = null;
+        int[] totals = new int[128];
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAPPED_REGION_SIZE)
+            {
+                int regionSize = (int) Math.min(MAPPED_REGION_SIZE, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+
+                if (engine != null)
+                {
+                    merge(totals, engine.count(region, 0, regionSize));
+                    continue;
+                }
+
+                // Same reasoning as process(char[]), small stuff isn't worth the threads.
+                if (regionSize < this.doNotMultiThreadIfLessThan)
+                {
+                    merge(totals, new ByteWorker(region, 0, regionSize).call());
+                    continue;
+                }
+
+                // Only start the pool once we know we need it, and then keep it
+                // around for the rest of the regions.
+                if (pool == null)
+                {
+                    pool = Executors.newFixedThreadPool(numberOfThreadsToUse);
+                }
+
+                final int bytesPerPartition = regionSize / numberOfThreadsToUse;
+                List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+                for (int partitionSegment = 0; partitionSegment < numberOfThreadsToUse; partitionSegment++)
+                {
+                    int partitionStartsAt = partitionSegment * bytesPerPartition;
+                    int partitionStopsAt = (partitionSegment == numberOfThreadsToUse - 1)
+                            ? regionSize
+                            : partitionStartsAt + bytesPerPartition;
+                    tasks.add(new ByteWorker(region, partitionStartsAt, partitionStopsAt));
+                }
+                merge(totals, pool.invokeAll(tasks));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing " + file);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Failed processing " + file, e.getCause());
+        }
+        finally
+        {
+            if (pool != null)
             {
-                int[] bag = partition.get();
-                // Merge the bag into the results
-                for(int i = 0; i < this.results.length; ++i)
+                pool.shutdown();
+            }
+            channel.close();
+        }
+
+        this.results = totals;
+        modCount++;
+    }
+
+    /**
+     * Same as processAsync(text, null).
+     *
+     * @param text
+     * @return
+     */
+    public CompletableFuture<int[]> processAsync(char[] text)
+    {
+        return processAsync(text, null);
+    }
+
+    /**
+     * Like process(char[]), but returns right away with a future for the counts.
+     * When it completes normally the counts are in this histogram too.
+     * <p>
+     * Cancelling the future really stops the work: every worker checks
+     * between slices of HistogramJob.SLICE characters and quits, freeing
+     * its thread. Failures show up in the future instead of being printed.
+     *
+     * @param text
+     * @param listener told about progress every so often; may be null
+     * @return
+     */
+    public CompletableFuture<int[]> processAsync(final char[] text, ProgressListener listener)
+    {
+        final HistogramJob job = new HistogramJob(text.length, listener, progressIntervalMillis);
+        int partitions = text.length < this.doNotMultiThreadIfLessThan ? 1 : this.numberOfPartitions;
+        final int charactersPerPartition = text.length / partitions;
+
+        List<Supplier<int[]>> parts = new ArrayList<Supplier<int[]>>();
+        for (int partitionSegment = 0; partitionSegment < partitions; partitionSegment++)
+        {
+            final int partitionStartsAt = partitionSegment * charactersPerPartition;
+            final int partitionStopsAt = (partitionSegment == partitions - 1)
+                    ? text.length
+                    : partitionStartsAt + charactersPerPartition;
+            parts.add(new Supplier<int[]>()
+            {
+                public int[] get()
                 {
-                    this.results[i] = bag[i];
+                    int[] output = new int[128];
+                    for (int i = partitionStartsAt; i < partitionStopsAt; i += HistogramJob.SLICE)
+                    {
+                        int sliceEnd = Math.min(partitionStopsAt, i + HistogramJob.SLICE);
+                        countChars(text, i, sliceEnd, output);
+                        job.checkpoint(sliceEnd - i);
+                    }
+                    return output;
+                }
+            });
+        }
+        return runAsync(job, parts, null);
+    }
+
+    /**
+     * Like process(Path), but returns right away with a future for the counts.
+     * Cancelling and progress work the same as processAsync(char[], ...),
+     * with progress in bytes. I/O errors fail the future.
+     *
+     * @param file
+     * @param listener told about progress every so often; may be null
+     * @return
+     */
+    public CompletableFuture<int[]> processAsync(Path file, ProgressListener listener)
+    {
+        final FileChannel channel;
+        final long size;
+        try
+        {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+        }
+        catch (IOException e)
+        {
+            CompletableFuture<int[]> failed = new CompletableFuture<int[]>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        final HistogramJob job = new HistogramJob(size, listener, progressIntervalMillis);
+        int partitions = size < this.doNotMultiThreadIfLessThan ? 1 : this.numberOfPartitions;
+        final long bytesPerPartition = size / partitions;
+
+        List<Supplier<int[]>> parts = new ArrayList<Supplier<int[]>>();
+        for (int partitionSegment = 0; partitionSegment < partitions; partitionSegment++)
+        {
+            final long partitionStartsAt = partitionSegment * bytesPerPartition;
+            final long partitionStopsAt = (partitionSegment == partitions - 1)
+                    ? size
+                    : partitionStartsAt + bytesPerPartition;
+            parts.add(new Supplier<int[]>()
+            {
+                public int[] get()
+                {
+                    int[] output = new int[128];
+                    try
+                    {
+                        // Each partition maps its own range, a region at a time.
+                        for (long position = partitionStartsAt; position < partitionStopsAt; position += MAPPED_REGION_SIZE)
+                        {
+                            int regionSize = (int) Math.min(MAPPED_REGION_SIZE, partitionStopsAt - position);
+                            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                            for (int i = 0; i < regionSize; i += HistogramJob.SLICE)
+                            {
+                                int sliceEnd = Math.min(regionSize, i + HistogramJob.SLICE);
+                                countBytes(region, i, sliceEnd, output);
+                                job.checkpoint(sliceEnd - i);
+                            }
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException(e);
+                    }
+                    return output;
+                }
+            });
+        }
+        return runAsync(job, parts, channel);
+    }
+
+    /**
+     * Starts the partitions and wires up the future: merge when they're all
+     * done, stop them all if the future is cancelled or one of them fails.
+     *
+     * @param resource closed once the run is over, may be null
+     */
+    private CompletableFuture<int[]> runAsync(final HistogramJob job, List<Supplier<int[]>> parts,
+                                              final Closeable resource)
+    {
+        ExecutorService pool = null;
+        Executor executor;
+        if (engine != null)
+        {
+            executor = engine.getPool();
+        }
+        else
+        {
+            pool = Executors.newFixedThreadPool(parts.size());
+            executor = pool;
+        }
+
+        final CompletableFuture<int[]> result = new CompletableFuture<int[]>();
+        final List<CompletableFuture<int[]>> running = new ArrayList<CompletableFuture<int[]>>(parts.size());
+        BiConsumer<int[], Throwable> stopOthersOnFailure = new BiConsumer<int[], Throwable>()
+        {
+            public void accept(int[] ignored, Throwable failure)
+            {
+                if (failure != null)
+                {
+                    job.cancel();
                 }
             }
+        };
+        for (Supplier<int[]> part : parts)
+        {
+            CompletableFuture<int[]> partition = CompletableFuture.supplyAsync(part, executor);
+            partition.whenComplete(stopOthersOnFailure);
+            running.add(partition);
+        }
+        if (pool != null)
+        {
+            // Lets the threads go away once the partitions finish.
+            pool.shutdown();
+        }
+
+        CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).whenComplete(new BiConsumer<Void, Throwable>()
+        {
+            public void accept(Void ignored, Throwable failure)
+            {
+                if (resource != null)
+                {
+                    try
+                    {
+                        resource.close();
+                    }
+                    catch (IOException ignore) {}
+                }
+
+                if (failure != null)
+                {
+                    result.completeExceptionally(failure instanceof CompletionException
+                            ? failure.getCause() : failure);
+                    return;
+                }
+
+                int[] totals = new int[128];
+                for (CompletableFuture<int[]> partition : running)
+                {
+                    merge(totals, partition.join());
+                }
+                job.finished();
+                results = totals;
+                modCount++;
+                result.complete(totals);
+            }
+        });
+
+        // Cancelling the future we hand out is what stops the workers.
+        result.whenComplete(new BiConsumer<int[], Throwable>()
+        {
+            public void accept(int[] ignored, Throwable failure)
+            {
+                if (result.isCancelled())
+                {
+                    job.cancel();
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Processes UTF-8 encoded text and records character counts, exactly as
+     * if it had been decoded into chars and handed to process(char[]), but
+     * without the decode or the char[]. (Everything non-ASCII is recorded as
+     * 127, and characters outside the BMP count twice, like their surrogates.)
+     * <p>
+     * Reads between the buffer's position and limit, heap or direct, and
+     * leaves the position alone.
+     *
+     * @param utf8
+     */
+    public void processUtf8(ByteBuffer utf8)
+    {
+        final int from = utf8.position();
+        final int to = utf8.limit();
+
+        if (engine != null)
+        {
+            results = engine.countUtf8(utf8, from, to);
+            modCount++;
+            return;
+        }
+
+        if (to - from < this.doNotMultiThreadIfLessThan)
+        {
+            int[] output = new int[128];
+            Utf8Counter.count(utf8, from, to, output);
+            results = output;
+            modCount++;
+            return;
+        }
+
+        int numberOfThreadsToUse = this.numberOfPartitions;
+        ExecutorService pool = Executors.newFixedThreadPool(numberOfThreadsToUse);
+        final int bytesPerPartition = (to - from) / numberOfThreadsToUse;
+        List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+        try
+        {
+            // Partitions can't start in the middle of a multi-byte character,
+            // so each boundary gets nudged forward to the next one that starts.
+            int partitionStartsAt = from;
+            for (int partitionSegment = 0; partitionSegment < numberOfThreadsToUse; partitionSegment++)
+            {
+                int partitionStopsAt = (partitionSegment == numberOfThreadsToUse - 1)
+                        ? to
+                        : Utf8Counter.splitPoint(utf8, Math.max(partitionStartsAt,
+                                from + (partitionSegment + 1) * bytesPerPartition), to);
+                tasks.add(new Utf8Worker(utf8, partitionStartsAt, partitionStopsAt));
+                partitionStartsAt = partitionStopsAt;
+            }
+
+            int[] totals = new int[128];
+            merge(totals, pool.invokeAll(tasks));
+            this.results = totals;
+            modCount++;
         }
         catch (InterruptedException ignored) {ignored.printStackTrace();}
         catch (ExecutionException ignored)   {ignored.printStackTrace();}
@@ -156,38 +810,125 @@ public class Histogram
         }
     }
 
+    /**
+     * Counts text[from..to) into output. (Non-ASCII characters go to 127.)
+     * This is the loop every worker runs, no matter who is scheduling it;
+     * which loop that is depends on the current CountingKernel.
+     */
+    static void countChars(char[] text, int from, int to, int[] output)
+    {
+        kernel.countChars(text, from, to, output);
+    }
+
+    /**
+     * Counts bytes[from..to) into output, one byte per character.
+     * Only absolute gets, so the buffer can be shared between threads.
+     */
+    static void countBytes(ByteBuffer bytes, int from, int to, int[] output)
+    {
+        kernel.countBytes(bytes, from, to, output);
+    }
+
+    /**
+     * Adds one partition's counts into the running totals.
+     */
+    static void merge(int[] totals, int[] bag)
+    {
+        for (int i = 0; i < totals.length; ++i)
+        {
+            totals[i] += bag[i];
+        }
+    }
+
+    /**
+     * Waits on each partition and adds its counts into the running totals.
+     */
+    private static void merge(int[] totals, List<Future<int[]>> partitions)
+            throws InterruptedException, ExecutionException
+    {
+        for (Future<int[]> partition : partitions)
+        {
+            merge(totals, partition.get());
+        }
+    }
+
     // It will return an array list of integers
     private class Worker implements Callable<int[]>
     {
         private char[] charsToWorkOn;
         private int startAt;
         private int stopAt;
+        private HistogramProbe probe;
+        private int partition;
 
-        public Worker(char[] text, int indexToStartAt, int indexToEndAt)
+        public Worker(char[] text, int indexToStartAt, int indexToEndAt, HistogramProbe probe, int partition)
         {
             charsToWorkOn = text;
             startAt = indexToStartAt;
             stopAt = indexToEndAt;
+            this.probe = probe;
+            this.partition = partition;
         }
 
         @Override
         public int[] call()
         {
             int[] output = new int[128];
-            for (int i = startAt; i < stopAt; ++i)
+            if (probe == null)
             {
-                int ch = charsToWorkOn[i];
-                if (ch >= 127){
-                    output[127]++;
-                }
-                else
-                {
-                    output[ch]++;
-                }
+                countChars(charsToWorkOn, startAt, stopAt, output);
+            }
+            else
+            {
+                probe.countPartition(partition, charsToWorkOn, startAt, stopAt, output);
             }
             return output;
         }
     }
-}
 
+    // Same as ByteWorker, but decodes UTF-8 as it goes. See Utf8Counter.
+    private class Utf8Worker implements Callable<int[]>
+    {
+        private ByteBuffer bytesToWorkOn;
+        private int startAt;
+        private int stopAt;
+
+        public Utf8Worker(ByteBuffer bytes, int indexToStartAt, int indexToEndAt)
+        {
+            bytesToWorkOn = bytes;
+            startAt = indexToStartAt;
+            stopAt = indexToEndAt;
+        }
+
+        @Override
+        public int[] call()
+        {
+            int[] output = new int[128];
+            Utf8Counter.count(bytesToWorkOn, startAt, stopAt, output);
+            return output;
+        }
+    }
+
+    // Same as Worker, but reads raw bytes straight out of a (mapped) buffer.
+    private class ByteWorker implements Callable<int[]>
+    {
+        private ByteBuffer bytesToWorkOn;
+        private int startAt;
+        private int stopAt;
 
+        public ByteWorker(ByteBuffer bytes, int indexToStartAt, int indexToEndAt)
+        {
+            bytesToWorkOn = bytes;
+            startAt = indexToStartAt;
+            stopAt = indexToEndAt;
+        }
+
+        @Override
+        public int[] call()
+        {
+            int[] output = new int[128];
+            countBytes(bytesToWorkOn, startAt, stopAt, output);
+            return output;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * Keeps a running ASCII histogram over input that arrives in chunks,
+ * such as text coming off a socket or a pipe.
+ * <p>
+ * Each chunk is counted once and added to the running totals; nothing
+ * already seen is counted again. snapshot() hands out an immutable copy
+ * of the totals so far, which can be merged with snapshots from other
+ * accumulators.
+ * <p>
+ * Buckets are the same as Histogram's: 128 of them, with everything
+ * non-ASCII in 127. An accumulator is meant to be fed by one thread at
+ * a time; give each thread its own and merge the snapshots.
+ */
+public class HistogramAccumulator
+{
+    // How much we read from a Reader or InputStream at once.
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final long[] totals = new long[128];
+
+    // Reused for every chunk, so steady-state streaming allocates nothing.
+    private final int[] scratch = new int[128];
+    private char[] charBuffer;
+    private byte[] byteBuffer;
+
+    /**
+     * Counts text[offset..offset+length).
+     *
+     * @param text
+     * @param offset
+     * @param length
+     */
+    public void add(char[] text, int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset + length > text.length)
+        {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+                    + ", array " + text.length);
+        }
+        Histogram.countChars(text, offset, offset + length, scratch);
+        drainScratch();
+    }
+
+    /**
+     * Counts whatever is left in the buffer, leaving its position at its limit.
+     *
+     * @param text
+     */
+    public void add(CharBuffer text)
+    {
+        if (text.hasArray())
+        {
+            int from = text.arrayOffset() + text.position();
+            Histogram.countChars(text.array(), from, from + text.remaining(), scratch);
+            text.position(text.limit());
+        }
+        else
+        {
+            while (text.hasRemaining())
+            {
+                int ch = text.get();
+                scratch[ch >= 127 ? 127 : ch]++;
+            }
+        }
+        drainScratch();
+    }
+
+    /**
+     * Reads and counts everything up to the end of the stream.
+     * The reader is not closed.
+     *
+     * @param in
+     * @return how many characters were read
+     * @throws IOException
+     */
+    public long add(Reader in) throws IOException
+    {
+        if (charBuffer == null)
+        {
+            charBuffer = new char[READ_BUFFER_SIZE];
+        }
+        long read = 0;
+        int n;
+        while ((n = in.read(charBuffer)) != -1)
+        {
+            add(charBuffer, 0, n);
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * Reads and counts everything up to the end of the stream, one byte
+     * per character, the same way Histogram.process(Path) does.
+     * The stream is not closed.
+     *
+     * @param in
+     * @return how many bytes were read
+     * @throws IOException
+     */
+    public long add(InputStream in) throws IOException
+    {
+        if (byteBuffer == null)
+        {
+            byteBuffer = new byte[READ_BUFFER_SIZE];
+        }
+        long read = 0;
+        int n;
+        while ((n = in.read(byteBuffer)) != -1)
+        {
+            for (int i = 0; i < n; ++i)
+            {
+                int b = byteBuffer[i] & 0xFF;
+                scratch[b >= 127 ? 127 : b]++;
+            }
+            drainScratch();
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * Folds another snapshot (from some other accumulator, thread or host)
+     * into the running totals.
+     *
+     * @param other
+     */
+    public void add(HistogramSnapshot other)
+    {
+        if (other.getBuckets() != totals.length)
+        {
+            throw new IllegalArgumentException("Expected " + totals.length
+                    + " buckets, got " + other.getBuckets());
+        }
+        for (int i = 0; i < totals.length; ++i)
+        {
+            totals[i] += other.getCount(i);
+        }
+    }
+
+    /**
+     * An immutable copy of the totals so far. Later chunks don't change it.
+     */
+    public HistogramSnapshot snapshot()
+    {
+        return HistogramSnapshot.wrap(totals.clone());
+    }
+
+    /**
+     * Starts the running totals over from zero.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < totals.length; ++i)
+        {
+            totals[i] = 0;
+        }
+    }
+
+    // Chunks are counted into an int array (a chunk can't overflow it) and
+    // then moved into the long totals.
+    private void drainScratch()
+    {
+        for (int i = 0; i < scratch.length; ++i)
+        {
+            totals[i] += scratch[i];
+            scratch[i] = 0;
+        }
+    }
+}
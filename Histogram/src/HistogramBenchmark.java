@@ -0,0 +1,271 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Benchmarks for the histogram counting code.
+ * <p>
+ * Runs every counting strategy over input from 1K characters up to a
+ * maximum size (1G if you have the heap for it), for each thread count,
+ * on every HistogramDataGenerator distribution. Each case gets
+ * warm-up iterations that are thrown away, then measured iterations,
+ * and is reported as mean time per operation with its standard deviation
+ * and throughput in millions of chars per second, the same way JMH
+ * reports average time.
+ * <p>
+ * Every case is repeated for each CountingKernel.
+ * <p>
+ * Usage: java HistogramBenchmark [maxSize] [strategy] [kernel]
+ * where maxSize takes K/M/G suffixes (default 16M), strategy is one
+ * of WORKER, PROCESS or ENGINE and kernel one of the CountingKernels
+ * (default all of them).
+ */
+public class HistogramBenchmark
+{
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+
+    // Each iteration repeats the operation until at least this much time
+    // has passed, so tiny inputs still get measured above timer resolution.
+    private static final long MIN_ITERATION_NANOS = 100L * 1000 * 1000;
+
+    private static final int SMALLEST_SIZE = 1024;
+    private static final int SIZE_STEP = 8;
+
+    /**
+     * Which counting code gets exercised.
+     */
+    enum Strategy
+    {
+        /** A single Worker.call() over the whole input, no threads. */
+        WORKER,
+        /** Histogram.process() with a new fixed pool per call. */
+        PROCESS,
+        /** HistogramEngine on a long-lived ForkJoinPool. */
+        ENGINE
+    }
+
+    // Results get folded in here so the JIT can't decide the counting is dead code.
+    private static volatile long sink;
+
+    public static void main(String[] args)
+    {
+        int maxSize = args.length > 0 ? parseSize(args[0]) : 16 * 1024 * 1024;
+        List<Strategy> strategies = new ArrayList<Strategy>();
+        if (args.length > 1)
+        {
+            strategies.add(Strategy.valueOf(args[1].toUpperCase()));
+        }
+        else
+        {
+            for (Strategy s : Strategy.values())
+            {
+                strategies.add(s);
+            }
+        }
+
+        // 1K, 8K, 64K, ... and always the max size itself
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (long size = SMALLEST_SIZE; size < maxSize; size *= SIZE_STEP)
+        {
+            sizes.add((int) size);
+        }
+        sizes.add(maxSize);
+
+        List<CountingKernel> kernels = new ArrayList<CountingKernel>();
+        if (args.length > 2)
+        {
+            kernels.add(CountingKernel.valueOf(args[2].toUpperCase()));
+        }
+        else
+        {
+            for (CountingKernel k : CountingKernel.values())
+            {
+                kernels.add(k);
+            }
+        }
+
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int t = 1; t < processors; t *= 2)
+        {
+            threadCounts.add(t);
+        }
+        threadCounts.add(processors);
+
+        System.out.println(String.format("%-12s %-10s %-8s %-10s %7s %14s %12s %10s",
+                "dist", "kernel", "strategy", "size", "threads", "ns/op", "error", "Mchars/s"));
+
+        for (HistogramDataGenerator.Distribution distribution : HistogramDataGenerator.Distribution.values())
+        {
+            // Generate the biggest input once; smaller sizes just use a prefix of it.
+            char[] text = HistogramDataGenerator.generate(distribution, maxSize, 42);
+            for (int size : sizes)
+            {
+                for (CountingKernel kernel : kernels)
+                {
+                    Histogram.setKernel(kernel);
+                    for (Strategy strategy : strategies)
+                    {
+                        if (strategy == Strategy.WORKER)
+                        {
+                            report(distribution, strategy, size, 1, text);
+                            continue;
+                        }
+                        for (int threads : threadCounts)
+                        {
+                            report(distribution, strategy, size, threads, text);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void report(HistogramDataGenerator.Distribution distribution, Strategy strategy,
+                               int size, int threads, char[] text)
+    {
+        double[] nanosPerOp = run(strategy, size, threads, text);
+
+        double mean = 0;
+        for (double n : nanosPerOp)
+        {
+            mean += n;
+        }
+        mean /= nanosPerOp.length;
+
+        double variance = 0;
+        for (double n : nanosPerOp)
+        {
+            variance += (n - mean) * (n - mean);
+        }
+        double error = Math.sqrt(variance / (nanosPerOp.length - 1));
+
+        // chars/ns * 1000 = million chars/s
+        double throughput = size / mean * 1000;
+
+        System.out.println(String.format("%-12s %-10s %-8s %-10d %7d %14.1f %12.1f %10.1f",
+                distribution, Histogram.getKernel(), strategy, size, threads, mean, error, throughput));
+    }
+
+    /**
+     * Runs the warm-up and measurement iterations for one case.
+     *
+     * @return nanoseconds per operation for each measured iteration
+     */
+    private static double[] run(Strategy strategy, final int size, int threads, final char[] text)
+    {
+        final char[] input = size == text.length ? text : Arrays.copyOf(text, size);
+        Runnable op;
+        ForkJoinPool pool = null;
+
+        switch (strategy)
+        {
+            case WORKER:
+            {
+                final Histogram h = new Histogram();
+                h.setDoNotMultiThreadIfLessThan(Integer.MAX_VALUE);
+                op = new Runnable()
+                {
+                    public void run()
+                    {
+                        h.process(input);
+                        sink += h.getCount(' ');
+                    }
+                };
+                break;
+            }
+            case PROCESS:
+            {
+                final Histogram h = new Histogram();
+                h.setDoNotMultiThreadIfLessThan(0);
+                h.setPartitions(threads);
+                op = new Runnable()
+                {
+                    public void run()
+                    {
+                        h.process(input);
+                        sink += h.getCount(' ');
+                    }
+                };
+                break;
+            }
+            default:
+            {
+                pool = new ForkJoinPool(threads);
+                final HistogramEngine engine = new HistogramEngine(pool);
+                op = new Runnable()
+                {
+                    public void run()
+                    {
+                        sink += engine.count(input)[' '];
+                    }
+                };
+                break;
+            }
+        }
+
+        try
+        {
+            for (int i = 0; i < WARMUP_ITERATIONS; ++i)
+            {
+                iteration(op);
+            }
+            double[] measured = new double[MEASUREMENT_ITERATIONS];
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; ++i)
+            {
+                measured[i] = iteration(op);
+            }
+            return measured;
+        }
+        finally
+        {
+            if (pool != null)
+            {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * One iteration: repeat the operation for at least MIN_ITERATION_NANOS.
+     *
+     * @return nanoseconds per operation
+     */
+    private static double iteration(Runnable op)
+    {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            op.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        }
+        while (elapsed < MIN_ITERATION_NANOS);
+        return (double) elapsed / ops;
+    }
+
+    /**
+     * Parses 1024, 64K, 16M, 1G style sizes.
+     */
+    private static int parseSize(String s)
+    {
+        String upper = s.trim().toUpperCase();
+        long multiplier = 1;
+        char last = upper.charAt(upper.length() - 1);
+        if (last == 'K' || last == 'M' || last == 'G')
+        {
+            multiplier = last == 'K' ? 1024L : last == 'M' ? 1024L * 1024 : 1024L * 1024 * 1024;
+            upper = upper.substring(0, upper.length() - 1);
+        }
+        long size = Long.parseLong(upper) * multiplier;
+        if (size < SMALLEST_SIZE || size > Integer.MAX_VALUE - 8)
+        {
+            throw new IllegalArgumentException("Size out of range: " + s);
+        }
+        return (int) size;
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Remembers per-file histograms between runs, so files that haven't
+ * changed don't get counted again.
+ * <p>
+ * A file is looked up by its absolute path, and the entry is only used if
+ * the size and last modified time still match. Optionally a checksum of
+ * the contents is kept too (setVerifyContent()); then a file whose time
+ * changed but whose bytes didn't (touched, copied over, checked out
+ * again) is still a hit, at the cost of reading it once to check.
+ * <p>
+ * Entries hold the HistogramCodec encoding, usually a couple hundred
+ * bytes, and are evicted least recently used first once the cache grows
+ * past its budget. Everything lives in memory; save() writes it all to
+ * one file (through a temp file, so a crash leaves the old one intact)
+ * and open() reads it back.
+ */
+public class HistogramCache
+{
+    /**
+     * Default budget: a few hundred thousand files' worth.
+     */
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    private static final int MAGIC = 0x48434348; // "HCCH"
+    private static final int VERSION = 1;
+
+    // Rough per-entry cost beyond the encoded histogram and the path.
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Path file;
+    private final long budget;
+    private boolean verifyContent;
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    // Access order, so iteration starts at the least recently used.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+    private HistogramCache(Path file, long budget)
+    {
+        if (budget < 0)
+        {
+            throw new IllegalArgumentException("Budget can't be negative: " + budget);
+        }
+        this.file = file;
+        this.budget = budget;
+    }
+
+    /**
+     * Opens the cache stored in a file, or an empty one if there is no
+     * such file yet or it was written by an incompatible version.
+     *
+     * @param file where save() will write it
+     * @param budget about how many bytes the entries may take
+     * @return
+     * @throws IOException if the file is there but can't be read
+     */
+    public static HistogramCache open(Path file, long budget) throws IOException
+    {
+        HistogramCache cache = new HistogramCache(file, budget);
+        if (Files.exists(file))
+        {
+            cache.load();
+        }
+        return cache;
+    }
+
+    /**
+     * Whether to keep a checksum of each file's contents, and use it to
+     * save entries whose modified time changed. Costs an extra read of
+     * each new file and of each file whose time changed.
+     *
+     * @param verifyContent
+     */
+    public synchronized void setVerifyContent(boolean verifyContent)
+    {
+        this.verifyContent = verifyContent;
+    }
+
+    /**
+     * The cached histogram for a file, if the file hasn't changed.
+     *
+     * @param path
+     * @param size the file's current size
+     * @param modified the file's current last modified time, millis
+     * @return the histogram, or null if it has to be counted
+     * @throws IOException if the contents had to be checked and couldn't be read
+     */
+    public synchronized HistogramSnapshot get(Path path, long size, long modified) throws IOException
+    {
+        String key = key(path);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != size)
+        {
+            misses++;
+            return null;
+        }
+        if (entry.modified != modified)
+        {
+            if (!verifyContent || entry.checksum < 0 || checksum(path) != entry.checksum)
+            {
+                misses++;
+                return null;
+            }
+            // Same bytes, new time: remember the new time so next run is a plain hit.
+            entries.put(key, new Entry(size, modified, entry.checksum, entry.counts));
+        }
+        hits++;
+        return HistogramCodec.decode(ByteBuffer.wrap(entry.counts));
+    }
+
+    /**
+     * Remembers a freshly counted file.
+     *
+     * @param path
+     * @param size the size it had when it was counted
+     * @param modified the last modified time it had when it was counted
+     * @param counts
+     * @throws IOException if a checksum was wanted and the file couldn't be read
+     */
+    public synchronized void put(Path path, long size, long modified, HistogramSnapshot counts) throws IOException
+    {
+        long checksum = verifyContent ? checksum(path) : -1;
+        ByteBuffer encoded = HistogramCodec.encode(counts);
+        byte[] stored = new byte[encoded.remaining()];
+        encoded.get(stored);
+
+        String key = key(path);
+        Entry old = entries.put(key, new Entry(size, modified, checksum, stored));
+        if (old != null)
+        {
+            bytes -= cost(key, old);
+        }
+        bytes += cost(key, entries.get(key));
+        evict();
+    }
+
+    /**
+     * Forgets everything.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Writes every entry out, least recently used first, replacing the
+     * old cache file.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException
+    {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null)
+        {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeLong(entry.checksum);
+                out.writeInt(entry.counts.length);
+                out.write(entry.counts);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * About how much memory (and disk) the entries take.
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    private void load() throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                // Somebody else's file or an old format; start over.
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i)
+            {
+                String key = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                long checksum = in.readLong();
+                byte[] counts = new byte[in.readInt()];
+                in.readFully(counts);
+                Entry entry = new Entry(size, modified, checksum, counts);
+                entries.put(key, entry);
+                bytes += cost(key, entry);
+            }
+        }
+        catch (EOFException e)
+        {
+            throw new IOException("Truncated histogram cache " + file, e);
+        }
+        finally
+        {
+            in.close();
+        }
+        // The budget may be smaller than last time.
+        evict();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Entry>> oldestFirst = entries.entrySet().iterator();
+        while (bytes > budget && oldestFirst.hasNext())
+        {
+            Map.Entry<String, Entry> e = oldestFirst.next();
+            bytes -= cost(e.getKey(), e.getValue());
+            oldestFirst.remove();
+        }
+    }
+
+    private static String key(Path path)
+    {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private static long cost(String key, Entry entry)
+    {
+        return ENTRY_OVERHEAD + 2L * key.length() + entry.counts.length;
+    }
+
+    /**
+     * CRC32C of the whole file; plenty to notice a change, and fast enough
+     * that it costs less than counting.
+     */
+    private static long checksum(Path path) throws IOException
+    {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            while (channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+        return crc.getValue();
+    }
+
+    private static class Entry
+    {
+        final long size;
+        final long modified;
+        // -1 when no checksum was taken
+        final long checksum;
+        final byte[] counts;
+
+        Entry(long size, long modified, long checksum, byte[] counts)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+            this.counts = counts;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Measures where multi-threading starts paying off on this machine.
+ * <p>
+ * The 1000 character cut-off in Histogram was a guess from one Core i7.
+ * This times the real process() code single threaded and split into
+ * partitions, across input sizes, and picks the partition count that is
+ * fastest on big input and the smallest size where splitting wins.
+ */
+public class HistogramCalibration
+{
+    // 1K up to 4M characters, doubling each step
+    private static final int SMALLEST_SIZE = 1024;
+    private static final int LARGEST_SIZE = 4 * 1024 * 1024;
+
+    // Roughly how many characters to push through per measurement, so the
+    // small sizes get repeated enough to be above timer noise.
+    private static final long CHARACTERS_PER_MEASUREMENT = 16L * 1024 * 1024;
+    private static final int MIN_REPETITIONS = 5;
+    private static final int MAX_REPETITIONS = 200;
+
+    /**
+     * Recalibrates on demand and saves the result.
+     * Takes the profile file as an optional argument.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Path file = args.length > 0 ? Paths.get(args[0]) : HistogramProfile.defaultLocation();
+        HistogramProfile profile = calibrate();
+        profile.save(file);
+        System.out.println("Saved " + profile + " to " + file);
+    }
+
+    /**
+     * Loads the saved profile, or measures a new one (and saves it) if there
+     * isn't one yet or it came from a different machine.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static HistogramProfile loadOrCalibrate(Path file) throws IOException
+    {
+        HistogramProfile profile = HistogramProfile.load(file);
+        if (profile != null && profile.matchesThisMachine())
+        {
+            return profile;
+        }
+
+        profile = calibrate();
+        profile.save(file);
+        return profile;
+    }
+
+    /**
+     * Measures this machine. Takes a few seconds.
+     *
+     * @return
+     */
+    public static HistogramProfile calibrate()
+    {
+        char[] text = Histogram.generate(LARGEST_SIZE);
+        Histogram h = new Histogram();
+
+        // Give the JIT a chance at both paths before we trust any numbers.
+        h.setDoNotMultiThreadIfLessThan(Integer.MAX_VALUE);
+        time(h, text, 20);
+        h.setDoNotMultiThreadIfLessThan(0);
+        time(h, text, 20);
+
+        // First, how many pieces to cut big input into.
+        int processors = Runtime.getRuntime().availableProcessors();
+        Set<Integer> candidates = new TreeSet<Integer>();
+        for (int p = 2; p < processors; p *= 2)
+        {
+            candidates.add(p);
+        }
+        candidates.add(Math.max(2, processors));
+        candidates.add(Math.max(2, processors * 2));
+
+        int bestPartitions = processors;
+        long bestTime = Long.MAX_VALUE;
+        for (int partitions : candidates)
+        {
+            h.setPartitions(partitions);
+            long elapsed = time(h, text, repetitionsFor(text.length));
+            if (elapsed < bestTime)
+            {
+                bestTime = elapsed;
+                bestPartitions = partitions;
+            }
+        }
+        h.setPartitions(bestPartitions);
+
+        // Then walk up the sizes until splitting wins twice in a row.
+        // (Once on its own could just be noise.)
+        int crossover = Integer.MAX_VALUE;
+        int firstWin = -1;
+        for (int size = SMALLEST_SIZE; size <= LARGEST_SIZE; size *= 2)
+        {
+            char[] sample = Arrays.copyOf(text, size);
+            int repetitions = repetitionsFor(size);
+
+            h.setDoNotMultiThreadIfLessThan(Integer.MAX_VALUE);
+            long single = time(h, sample, repetitions);
+            h.setDoNotMultiThreadIfLessThan(0);
+            long parallel = time(h, sample, repetitions);
+
+            if (parallel < single)
+            {
+                if (firstWin >= 0)
+                {
+                    crossover = firstWin;
+                    break;
+                }
+                firstWin = size;
+            }
+            else
+            {
+                firstWin = -1;
+            }
+        }
+
+        return new HistogramProfile(crossover, bestPartitions);
+    }
+
+    private static int repetitionsFor(int size)
+    {
+        long repetitions = CHARACTERS_PER_MEASUREMENT / size;
+        return (int) Math.max(MIN_REPETITIONS, Math.min(MAX_REPETITIONS, repetitions));
+    }
+
+    /**
+     * Best of a number of runs, in nanoseconds. The minimum is the run
+     * least disturbed by everything else going on in the box.
+     */
+    private static long time(Histogram h, char[] text, int repetitions)
+    {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < repetitions; ++i)
+        {
+            long start = System.nanoTime();
+            h.process(text);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,348 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A small binary format for histogram snapshots, for storing them or
+ * sending them between machines.
+ * <p>
+ * Layout, every number after the first two bytes is an unsigned varint
+ * (7 bits per byte, low bits first, high bit set on all but the last):
+ * <pre>
+ *   magic 'H'  version 1
+ *   bucket count
+ *   number of non-zero buckets
+ *   then for each non-zero bucket, in increasing order:
+ *     gap since the previous non-zero bucket (index - previous - 1)
+ *     count
+ * </pre>
+ * Zero buckets take no space at all and small counts take a byte or two,
+ * so a typical ASCII histogram is a couple hundred bytes instead of 1K.
+ * <p>
+ * Everything works straight on the caller's ByteBuffers (heap or direct)
+ * from their current position, with no intermediate arrays, and encoded
+ * histograms can be merged without decoding them into snapshots first.
+ */
+public class HistogramCodec
+{
+    static final byte MAGIC = 'H';
+    static final byte VERSION = 1;
+
+    // A long takes at most 10 varint bytes.
+    private static final int MAX_VARINT = 10;
+
+    /**
+     * The most buckets an encoded histogram may claim: one per char, as in
+     * UnicodeHistogram. Zero buckets take no space, so the input's length
+     * says nothing about the count, and without a cap a few corrupt bytes
+     * could make decode() allocate gigabytes.
+     */
+    public static final int MAX_BUCKETS = Character.MAX_VALUE + 1;
+
+    private HistogramCodec()
+    {
+    }
+
+    /**
+     * The most space a histogram with this many buckets can take.
+     *
+     * @param buckets
+     * @return
+     */
+    public static int maxEncodedSize(int buckets)
+    {
+        return 2 + 2 * 5 + buckets * (5 + MAX_VARINT);
+    }
+
+    /**
+     * Writes a snapshot at the buffer's position, advancing it.
+     *
+     * @param snapshot
+     * @param out
+     * @throws BufferOverflowException if out doesn't have room; its position
+     *         is left where it was
+     * @throws IllegalArgumentException if it has more than MAX_BUCKETS buckets
+     */
+    public static void encode(HistogramSnapshot snapshot, ByteBuffer out)
+    {
+        int start = out.position();
+        try
+        {
+            int buckets = snapshot.getBuckets();
+            if (buckets > MAX_BUCKETS)
+            {
+                throw new IllegalArgumentException("Too many buckets to encode: " + buckets);
+            }
+            int nonZero = 0;
+            for (int i = 0; i < buckets; ++i)
+            {
+                if (snapshot.getCount(i) != 0)
+                {
+                    nonZero++;
+                }
+            }
+
+            out.put(MAGIC).put(VERSION);
+            putVarint(out, buckets);
+            putVarint(out, nonZero);
+            int previous = -1;
+            for (int i = 0; i < buckets; ++i)
+            {
+                long c = snapshot.getCount(i);
+                if (c != 0)
+                {
+                    putVarint(out, i - previous - 1);
+                    putVarint(out, c);
+                    previous = i;
+                }
+            }
+        }
+        catch (BufferOverflowException e)
+        {
+            out.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes into a new heap buffer of exactly the right size, flipped and
+     * ready to read or send.
+     *
+     * @param snapshot
+     * @return
+     */
+    public static ByteBuffer encode(HistogramSnapshot snapshot)
+    {
+        ByteBuffer scratch = ByteBuffer.allocate(maxEncodedSize(snapshot.getBuckets()));
+        encode(snapshot, scratch);
+        scratch.flip();
+        ByteBuffer exact = ByteBuffer.allocate(scratch.remaining());
+        exact.put(scratch).flip();
+        return exact;
+    }
+
+    /**
+     * Reads one snapshot from the buffer's position, advancing it.
+     *
+     * @param in
+     * @return
+     * @throws IllegalArgumentException if the bytes aren't a histogram
+     */
+    public static HistogramSnapshot decode(ByteBuffer in)
+    {
+        long[] counts = new long[readHeader(in)];
+        addEntries(in, counts);
+        return HistogramSnapshot.wrap(counts);
+    }
+
+    /**
+     * Adds an encoded histogram straight into running totals, without
+     * building a snapshot. Advances the buffer past it.
+     *
+     * @param in
+     * @param totals must have the same number of buckets as the encoded histogram
+     */
+    public static void mergeInto(ByteBuffer in, long[] totals)
+    {
+        int buckets = readHeader(in);
+        if (buckets != totals.length)
+        {
+            throw new IllegalArgumentException("Can't merge " + buckets
+                    + " buckets into " + totals.length);
+        }
+        addEntries(in, totals);
+    }
+
+    /**
+     * Merges two encoded histograms into a third, walking both in step the
+     * way a merge sort does. Advances all three buffers.
+     *
+     * @param a
+     * @param b
+     * @param out
+     */
+    public static void merge(ByteBuffer a, ByteBuffer b, ByteBuffer out)
+    {
+        // First pass on throwaway views, just to count the merged non-zero buckets,
+        // since that count comes before the entries.
+        ByteBuffer countA = a.duplicate();
+        ByteBuffer countB = b.duplicate();
+        int buckets = readHeader(countA);
+        if (readHeader(countB) != buckets)
+        {
+            throw new IllegalArgumentException("Can't merge histograms with different bucket counts");
+        }
+        int nonZero = 0;
+        EntryReader ra = new EntryReader(countA, buckets);
+        EntryReader rb = new EntryReader(countB, buckets);
+        while (ra.index >= 0 || rb.index >= 0)
+        {
+            nonZero++;
+            advanceLowest(ra, rb);
+        }
+
+        int start = out.position();
+        try
+        {
+            readHeader(a);
+            readHeader(b);
+            out.put(MAGIC).put(VERSION);
+            putVarint(out, buckets);
+            putVarint(out, nonZero);
+
+            ra = new EntryReader(a, buckets);
+            rb = new EntryReader(b, buckets);
+            int previous = -1;
+            while (ra.index >= 0 || rb.index >= 0)
+            {
+                int index;
+                long count;
+                if (rb.index < 0 || (ra.index >= 0 && ra.index < rb.index))
+                {
+                    index = ra.index;
+                    count = ra.count;
+                }
+                else if (ra.index < 0 || rb.index < ra.index)
+                {
+                    index = rb.index;
+                    count = rb.count;
+                }
+                else
+                {
+                    index = ra.index;
+                    count = ra.count + rb.count;
+                }
+                putVarint(out, index - previous - 1);
+                putVarint(out, count);
+                previous = index;
+                advanceLowest(ra, rb);
+            }
+        }
+        catch (BufferOverflowException e)
+        {
+            out.position(start);
+            throw e;
+        }
+    }
+
+    private static void advanceLowest(EntryReader ra, EntryReader rb)
+    {
+        if (rb.index < 0 || (ra.index >= 0 && ra.index < rb.index))
+        {
+            ra.next();
+        }
+        else if (ra.index < 0 || rb.index < ra.index)
+        {
+            rb.next();
+        }
+        else
+        {
+            ra.next();
+            rb.next();
+        }
+    }
+
+    /**
+     * Checks magic and version, returns the bucket count.
+     */
+    private static int readHeader(ByteBuffer in)
+    {
+        byte magic = in.get();
+        byte version = in.get();
+        if (magic != MAGIC)
+        {
+            throw new IllegalArgumentException("Not an encoded histogram");
+        }
+        if (version != VERSION)
+        {
+            throw new IllegalArgumentException("Unsupported histogram version " + version);
+        }
+        long buckets = getVarint(in);
+        if (buckets > MAX_BUCKETS)
+        {
+            throw new IllegalArgumentException("Bad bucket count " + buckets);
+        }
+        return (int) buckets;
+    }
+
+    private static void addEntries(ByteBuffer in, long[] totals)
+    {
+        EntryReader reader = new EntryReader(in, totals.length);
+        while (reader.index >= 0)
+        {
+            totals[reader.index] += reader.count;
+            reader.next();
+        }
+    }
+
+    /**
+     * Writes an unsigned varint.
+     */
+    static void putVarint(ByteBuffer out, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     */
+    static long getVarint(ByteBuffer in)
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+            {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    // Walks the (gap, count) entries after the header; index is -1 once they run out.
+    private static class EntryReader
+    {
+        private final ByteBuffer in;
+        private final int buckets;
+        private long remaining;
+        int index = -1;
+        long count;
+
+        EntryReader(ByteBuffer in, int buckets)
+        {
+            this.in = in;
+            this.buckets = buckets;
+            this.remaining = getVarint(in);
+            // Every entry takes at least two bytes.
+            if (remaining > buckets || remaining > in.remaining() / 2)
+            {
+                throw new IllegalArgumentException("Bad non-zero bucket count " + remaining);
+            }
+            next();
+        }
+
+        void next()
+        {
+            if (remaining == 0)
+            {
+                index = -1;
+                return;
+            }
+            remaining--;
+            long gap = getVarint(in);
+            long next = (long) index + 1 + gap;
+            if (next >= buckets)
+            {
+                throw new IllegalArgumentException("Bad bucket index " + next);
+            }
+            index = (int) next;
+            count = getVarint(in);
+        }
+    }
+}
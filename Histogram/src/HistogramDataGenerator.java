@@ -0,0 +1,285 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Makes synthetic text for benchmarks and calibration, fast and repeatable.
+ * <p>
+ * The output is cut into fixed size chunks and every chunk gets its own
+ * SplittableRandom, split off a root seeded with the caller's seed in
+ * chunk order. The chunks are then filled in parallel on a ForkJoinPool.
+ * Since which generator fills which chunk doesn't depend on the threads,
+ * the same seed and size always give the same text, on any machine.
+ * <p>
+ * Besides uniform ASCII there are distributions that look more like what
+ * actually gets counted: English-ish prose with word frequencies following
+ * Zipf's law, the same with some non-ASCII mixed in (including surrogate
+ * pairs), and long runs of a single char.
+ */
+public class HistogramDataGenerator
+{
+    // Big enough to keep a thread busy for a while, small enough to spread out.
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * What the text looks like.
+     */
+    public enum Distribution
+    {
+        /** Every ASCII code equally likely. */
+        UNIFORM,
+        /** Common English words with Zipf frequencies, sentences and the odd line break. */
+        ENGLISH,
+        /** ENGLISH with about one word in 30 swapped for accented, Greek, CJK or emoji text. */
+        MOSTLY_ASCII,
+        /** Runs of one char, 1 to 4K long, so whole cache lines hit the same bucket. */
+        RUNS
+    }
+
+    // The most common English words, most common first.
+    private static final String[] WORDS = (
+            "the of and to a in is you that it he was for on are as with his they I at be "
+            + "this have from or one had by word but not what all were we when your can said "
+            + "there use an each which she do how their if will up other about out many then "
+            + "them these so some her would make like him into time has look two more write "
+            + "go see number no way could people my than first water been call who oil its now "
+            + "find long down day did get come made may part").split(" ");
+
+    // Non-ASCII words for MOSTLY_ASCII, from Latin-1 up to outside the BMP.
+    private static final String[] FOREIGN_WORDS = {
+            "café", "naïve", "über", "señor", "façade",
+            "αλφα", "мир", "東京", "—", "€5",
+            "😀", "👍🏽"
+    };
+
+    // WORD_CUMULATIVE[i] is the chance of picking one of the first i+1 words.
+    private static final double[] WORD_CUMULATIVE = zipf(WORDS.length, 1.0);
+
+    private HistogramDataGenerator()
+    {
+    }
+
+    /**
+     * Generates text on the common pool.
+     *
+     * @param distribution
+     * @param size chars
+     * @param seed same seed, same text
+     * @return
+     */
+    public static char[] generate(Distribution distribution, int size, long seed)
+    {
+        return generate(distribution, size, seed, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Generates text on the given pool.
+     *
+     * @param distribution
+     * @param size chars
+     * @param seed same seed, same text
+     * @param pool
+     * @return
+     */
+    public static char[] generate(Distribution distribution, int size, long seed, ForkJoinPool pool)
+    {
+        char[] text = new char[size];
+        int chunks = (int) (((long) size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        // Split in chunk order on this thread, so chunk i always gets the same generator.
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] randoms = new SplittableRandom[chunks];
+        for (int i = 0; i < chunks; ++i)
+        {
+            randoms[i] = root.split();
+        }
+
+        if (chunks == 1)
+        {
+            fill(distribution, text, 0, size, randoms[0]);
+        }
+        else if (chunks > 1)
+        {
+            pool.invoke(new Fill(distribution, text, randoms, 0, chunks));
+        }
+        return text;
+    }
+
+    /**
+     * Fills text[from..to) from one generator.
+     */
+    static void fill(Distribution distribution, char[] text, int from, int to, SplittableRandom random)
+    {
+        switch (distribution)
+        {
+            case UNIFORM:
+                for (int i = from; i < to; ++i)
+                {
+                    text[i] = (char) random.nextInt(128);
+                }
+                break;
+            case ENGLISH:
+                fillWords(text, from, to, random, 0);
+                break;
+            case MOSTLY_ASCII:
+                fillWords(text, from, to, random, 30);
+                break;
+            case RUNS:
+                fillRuns(text, from, to, random);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+    }
+
+    /**
+     * Words separated by spaces, sentences of 4 to 20 words starting with a
+     * capital and ending in a period, and a line break every few sentences.
+     * If foreignOneIn is above zero, about one word in that many is a
+     * FOREIGN_WORD instead. A word that won't fit at the end is cut off,
+     * except that a surrogate pair is never split.
+     */
+    private static void fillWords(char[] text, int from, int to, SplittableRandom random, int foreignOneIn)
+    {
+        int i = from;
+        int wordsLeftInSentence = 0;
+        boolean capitalize = true;
+        while (i < to)
+        {
+            if (wordsLeftInSentence == 0)
+            {
+                wordsLeftInSentence = random.nextInt(4, 21);
+                capitalize = true;
+            }
+
+            String word;
+            if (foreignOneIn > 0 && random.nextInt(foreignOneIn) == 0)
+            {
+                word = FOREIGN_WORDS[random.nextInt(FOREIGN_WORDS.length)];
+            }
+            else
+            {
+                word = WORDS[pick(WORD_CUMULATIVE, random.nextDouble())];
+            }
+
+            for (int c = 0; c < word.length() && i < to; ++c)
+            {
+                char ch = word.charAt(c);
+                if (Character.isHighSurrogate(ch) && i + 1 >= to)
+                {
+                    break;
+                }
+                text[i++] = capitalize && c == 0 ? Character.toUpperCase(ch) : ch;
+            }
+            capitalize = false;
+
+            if (--wordsLeftInSentence == 0)
+            {
+                if (i < to)
+                {
+                    text[i++] = '.';
+                }
+                if (i < to)
+                {
+                    text[i++] = random.nextInt(5) == 0 ? '\n' : ' ';
+                }
+            }
+            else if (i < to)
+            {
+                text[i++] = ' ';
+            }
+        }
+    }
+
+    /**
+     * Runs of one printable ASCII char, 1 to 4096 long.
+     */
+    private static void fillRuns(char[] text, int from, int to, SplittableRandom random)
+    {
+        int i = from;
+        while (i < to)
+        {
+            char ch = (char) random.nextInt(32, 127);
+            int end = (int) Math.min(to, (long) i + random.nextInt(1, 4097));
+            while (i < end)
+            {
+                text[i++] = ch;
+            }
+        }
+    }
+
+    /**
+     * Running totals of the Zipf weights 1/rank^exponent, scaled to end at 1.
+     */
+    private static double[] zipf(int n, double exponent)
+    {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 1; rank <= n; ++rank)
+        {
+            sum += 1.0 / Math.pow(rank, exponent);
+            cumulative[rank - 1] = sum;
+        }
+        for (int i = 0; i < n; ++i)
+        {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    /**
+     * First index whose running total is above u. Binary search, so a pick
+     * is O(log n) whatever the vocabulary.
+     */
+    private static int pick(double[] cumulative, double u)
+    {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] > u)
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    // Fills chunks [firstChunk..lastChunk), halving the range until it's one chunk.
+    private static class Fill extends RecursiveAction
+    {
+        private final Distribution distribution;
+        private final char[] text;
+        private final SplittableRandom[] randoms;
+        private final int firstChunk;
+        private final int lastChunk;
+
+        Fill(Distribution distribution, char[] text, SplittableRandom[] randoms, int firstChunk, int lastChunk)
+        {
+            this.distribution = distribution;
+            this.text = text;
+            this.randoms = randoms;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (lastChunk - firstChunk == 1)
+            {
+                int from = firstChunk * CHUNK_SIZE;
+                int to = (int) Math.min(text.length, (long) from + CHUNK_SIZE);
+                fill(distribution, text, from, to, randoms[firstChunk]);
+                return;
+            }
+            int middle = (firstChunk + lastChunk) >>> 1;
+            invokeAll(new Fill(distribution, text, randoms, firstChunk, middle),
+                    new Fill(distribution, text, randoms, middle, lastChunk));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A long-lived histogram counter that keeps one ForkJoinPool around
+ * for every call, instead of starting and stopping threads each time.
+ * <p>
+ * Work is split in half recursively until the pieces are small, so the
+ * same engine copes with a 2K buffer and a 2GB one. Inputs that are
+ * already small are counted right on the calling thread.
+ */
+public class HistogramEngine implements AutoCloseable
+{
+    /**
+     * Pieces this size or smaller are counted directly rather than split.
+     * Big enough that the fork/join bookkeeping is noise next to the counting.
+     */
+    public static final int DEFAULT_SPLIT_THRESHOLD = 16 * 1024;
+
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+    private final int splitThreshold;
+
+    /**
+     * Creates an engine with its own pool, one thread per processor.
+     */
+    public HistogramEngine()
+    {
+        this(new ForkJoinPool(), true, DEFAULT_SPLIT_THRESHOLD);
+    }
+
+    /**
+     * Creates an engine on top of somebody else's pool. close() will
+     * leave that pool running.
+     *
+     * @param pool
+     */
+    public HistogramEngine(ForkJoinPool pool)
+    {
+        this(pool, false, DEFAULT_SPLIT_THRESHOLD);
+    }
+
+    /**
+     * Creates an engine on top of somebody else's pool with a custom split size.
+     *
+     * @param pool
+     * @param splitThreshold
+     */
+    public HistogramEngine(ForkJoinPool pool, int splitThreshold)
+    {
+        this(pool, false, splitThreshold);
+    }
+
+    private HistogramEngine(ForkJoinPool pool, boolean ownsPool, int splitThreshold)
+    {
+        if (splitThreshold < 1)
+        {
+            throw new IllegalArgumentException("splitThreshold must be positive: " + splitThreshold);
+        }
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.splitThreshold = splitThreshold;
+    }
+
+    /**
+     * Counts the whole array. (Non-ASCII characters are all recorded as 127.)
+     *
+     * @param text
+     * @return 128 bucket counts
+     */
+    public int[] count(char[] text)
+    {
+        return count(text, 0, text.length);
+    }
+
+    /**
+     * Counts text[from..to).
+     *
+     * @param text
+     * @param from
+     * @param to
+     * @return 128 bucket counts
+     */
+    public int[] count(char[] text, int from, int to)
+    {
+        if (to - from <= splitThreshold)
+        {
+            int[] output = new int[128];
+            Histogram.countChars(text, from, to, output);
+            return output;
+        }
+        return pool.invoke(new CharTask(text, from, to));
+    }
+
+    /**
+     * Counts bytes[from..to), one byte per character. Only absolute
+     * gets are used, so the buffer's position is left alone.
+     *
+     * @param bytes
+     * @param from
+     * @param to
+     * @return 128 bucket counts
+     */
+    public int[] count(ByteBuffer bytes, int from, int to)
+    {
+        if (to - from <= splitThreshold)
+        {
+            int[] output = new int[128];
+            Histogram.countBytes(bytes, from, to, output);
+            return output;
+        }
+        return pool.invoke(new ByteTask(bytes, from, to));
+    }
+
+    /**
+     * Counts UTF-8 text in bytes[from..to) with the same results as decoding
+     * it to chars first, but without making the chars. See Utf8Counter.
+     *
+     * @param bytes
+     * @param from
+     * @param to
+     * @return 128 bucket counts
+     */
+    public int[] countUtf8(ByteBuffer bytes, int from, int to)
+    {
+        if (to - from <= splitThreshold)
+        {
+            int[] output = new int[128];
+            Utf8Counter.count(bytes, from, to, output);
+            return output;
+        }
+        return pool.invoke(new Utf8Task(bytes, from, to));
+    }
+
+    /**
+     * The pool this engine runs on.
+     */
+    public ForkJoinPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Shuts down the pool if this engine created it. Counting after
+     * close() is rejected by the pool.
+     */
+    @Override
+    public void close()
+    {
+        if (ownsPool)
+        {
+            pool.shutdown();
+        }
+    }
+
+    // Keep halving until the piece is small, then count it.
+    private class CharTask extends RecursiveTask<int[]>
+    {
+        private final char[] text;
+        private final int from;
+        private final int to;
+
+        CharTask(char[] text, int from, int to)
+        {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute()
+        {
+            if (to - from <= splitThreshold)
+            {
+                int[] output = new int[128];
+                Histogram.countChars(text, from, to, output);
+                return output;
+            }
+
+            int middle = (from + to) >>> 1;
+            CharTask left = new CharTask(text, from, middle);
+            left.fork();
+            int[] output = new CharTask(text, middle, to).compute();
+            Histogram.merge(output, left.join());
+            return output;
+        }
+    }
+
+    private class ByteTask extends RecursiveTask<int[]>
+    {
+        private final ByteBuffer bytes;
+        private final int from;
+        private final int to;
+
+        ByteTask(ByteBuffer bytes, int from, int to)
+        {
+            this.bytes = bytes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute()
+        {
+            if (to - from <= splitThreshold)
+            {
+                int[] output = new int[128];
+                Histogram.countBytes(bytes, from, to, output);
+                return output;
+            }
+
+            int middle = (from + to) >>> 1;
+            ByteTask left = new ByteTask(bytes, from, middle);
+            left.fork();
+            int[] output = new ByteTask(bytes, middle, to).compute();
+            Histogram.merge(output, left.join());
+            return output;
+        }
+    }
+
+    // Like ByteTask, but only ever splits where a new UTF-8 sequence starts.
+    private class Utf8Task extends RecursiveTask<int[]>
+    {
+        private final ByteBuffer bytes;
+        private final int from;
+        private final int to;
+
+        Utf8Task(ByteBuffer bytes, int from, int to)
+        {
+            this.bytes = bytes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute()
+        {
+            int middle = Utf8Counter.splitPoint(bytes, (from + to) >>> 1, to);
+            if (to - from <= splitThreshold || middle == to)
+            {
+                int[] output = new int[128];
+                Utf8Counter.count(bytes, from, to, output);
+                return output;
+            }
+
+            Utf8Task left = new Utf8Task(bytes, from, middle);
+            left.fork();
+            int[] output = new Utf8Task(bytes, middle, to).compute();
+            Histogram.merge(output, left.join());
+            return output;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Answers questions about a finished histogram without rescanning it.
+ * <p>
+ * Built once from the counts: the codes that were seen, in ascending
+ * order, with a running total next to each (prefix sums), and the same
+ * codes ordered by count for top-K. After that, totals over a range of
+ * codes, ranks and quantiles are binary searches over the running totals,
+ * and the top K is just the first K of the ordering. Codes that were
+ * never seen aren't stored, so a full Unicode histogram costs what it
+ * actually uses.
+ * <p>
+ * An index is immutable. Histogram.index() and UnicodeHistogram.index()
+ * hand out the same one until the histogram changes, then build a new one.
+ */
+public final class HistogramIndex
+{
+    private final int[] codes;
+    // prefix[i] is the total of every code before codes[i]; prefix[codes.length] is the grand total.
+    private final long[] prefix;
+    // positions into codes, biggest count first, ties in code order
+    private final int[] byCount;
+
+    /**
+     * @param codes codes that were seen, ascending, no repeats
+     * @param counts count of each code, all above zero
+     */
+    HistogramIndex(int[] codes, long[] counts)
+    {
+        this.codes = codes;
+        this.prefix = new long[codes.length + 1];
+        for (int i = 0; i < codes.length; ++i)
+        {
+            prefix[i + 1] = prefix[i] + counts[i];
+        }
+
+        Integer[] order = new Integer[codes.length];
+        for (int i = 0; i < order.length; ++i)
+        {
+            order[i] = i;
+        }
+        // Sorted once per index, so the boxing doesn't matter much.
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                int difference = Long.compare(countAt(b), countAt(a));
+                return difference != 0 ? difference : Integer.compare(a, b);
+            }
+        });
+        this.byCount = new int[order.length];
+        for (int i = 0; i < order.length; ++i)
+        {
+            byCount[i] = order[i];
+        }
+    }
+
+    /**
+     * Index over dense counts, where the code is the array index.
+     *
+     * @param counts
+     * @return
+     */
+    public static HistogramIndex of(int[] counts)
+    {
+        long[] wide = new long[counts.length];
+        for (int i = 0; i < counts.length; ++i)
+        {
+            wide[i] = counts[i];
+        }
+        return of(wide);
+    }
+
+    /**
+     * Index over dense counts, where the code is the array index.
+     *
+     * @param counts
+     * @return
+     */
+    public static HistogramIndex of(long[] counts)
+    {
+        int seen = 0;
+        for (long c : counts)
+        {
+            if (c != 0)
+            {
+                seen++;
+            }
+        }
+        int[] codes = new int[seen];
+        long[] kept = new long[seen];
+        int n = 0;
+        for (int i = 0; i < counts.length; ++i)
+        {
+            if (counts[i] != 0)
+            {
+                codes[n] = i;
+                kept[n++] = counts[i];
+            }
+        }
+        return new HistogramIndex(codes, kept);
+    }
+
+    /**
+     * Index over a snapshot's buckets.
+     *
+     * @param snapshot
+     * @return
+     */
+    public static HistogramIndex of(HistogramSnapshot snapshot)
+    {
+        return of(snapshot.toArray());
+    }
+
+    /**
+     * Everything counted. O(1).
+     */
+    public long getTotal()
+    {
+        return prefix[codes.length];
+    }
+
+    /**
+     * How many different codes were seen. O(1).
+     */
+    public int getDistinct()
+    {
+        return codes.length;
+    }
+
+    /**
+     * Count of one code. O(log n).
+     *
+     * @param code
+     * @return
+     */
+    public long getCount(int code)
+    {
+        int i = Arrays.binarySearch(codes, code);
+        return i < 0 ? 0 : countAt(i);
+    }
+
+    /**
+     * Total count of codes from (inclusive) to (exclusive). O(log n).
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    public long sum(int from, int to)
+    {
+        if (to <= from)
+        {
+            return 0;
+        }
+        return rank(to) - rank(from);
+    }
+
+    /**
+     * What fraction of everything counted falls in codes from..to
+     * (exclusive), e.g. fraction(32, 127) for printable ASCII. O(log n).
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    public double fraction(int from, int to)
+    {
+        long total = getTotal();
+        return total == 0 ? 0 : (double) sum(from, to) / total;
+    }
+
+    /**
+     * How many counted things had a code below this one. O(log n).
+     *
+     * @param code
+     * @return
+     */
+    public long rank(int code)
+    {
+        int i = Arrays.binarySearch(codes, code);
+        // Not found gives -(insertion point) - 1, and the insertion point is what we want.
+        return prefix[i < 0 ? -i - 1 : i];
+    }
+
+    /**
+     * The smallest code with at least q of everything counted at or below
+     * it; quantile(0.5) is the median code. O(log n).
+     *
+     * @param q between 0 and 1
+     * @return the code, or -1 if nothing was counted
+     */
+    public int quantile(double q)
+    {
+        if (q < 0 || q > 1)
+        {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1, not " + q);
+        }
+        long total = getTotal();
+        if (total == 0)
+        {
+            return -1;
+        }
+        // At least one, so quantile(0) is the smallest code seen.
+        long wanted = Math.max(1, (long) Math.ceil(q * total));
+
+        // First i with prefix[i + 1] >= wanted.
+        int low = 0;
+        int high = codes.length - 1;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (prefix[middle + 1] >= wanted)
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle + 1;
+            }
+        }
+        return codes[low];
+    }
+
+    /**
+     * The k most common codes, most common first; fewer if fewer were
+     * seen. O(k).
+     *
+     * @param k
+     * @return
+     */
+    public int[] topK(int k)
+    {
+        int n = Math.min(Math.max(k, 0), byCount.length);
+        int[] top = new int[n];
+        for (int i = 0; i < n; ++i)
+        {
+            top[i] = codes[byCount[i]];
+        }
+        return top;
+    }
+
+    private long countAt(int i)
+    {
+        return prefix[i + 1] - prefix[i];
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared state for one Histogram.processAsync() run: whether it has been
+ * cancelled, how much has been counted, and when progress was last reported.
+ * <p>
+ * Workers count in slices and call checkpoint() between them. That is
+ * where a cancel actually takes effect, and where progress gets reported
+ * if enough time has gone by. Between checkpoints the counting loop is
+ * exactly the normal one.
+ */
+class HistogramJob
+{
+    /**
+     * How much a worker counts between checkpoints. Small enough that a
+     * cancel is noticed within a millisecond or so, big enough that the
+     * checks are lost in the noise.
+     */
+    static final int SLICE = 256 * 1024;
+
+    private final long total;
+    private final ProgressListener listener;
+    private final long intervalNanos;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong lastReportNanos = new AtomicLong(startNanos);
+    private volatile boolean cancelled;
+
+    HistogramJob(long total, ProgressListener listener, long intervalMillis)
+    {
+        this.total = total;
+        this.listener = listener;
+        this.intervalNanos = intervalMillis * 1000000L;
+    }
+
+    /**
+     * Asks the workers to stop at their next checkpoint.
+     */
+    void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * Records a finished slice; throws if the run has been cancelled.
+     *
+     * @param counted how much was counted since the last checkpoint
+     */
+    void checkpoint(long counted)
+    {
+        if (cancelled)
+        {
+            throw new CancellationException("Histogram run cancelled");
+        }
+
+        long soFar = done.addAndGet(counted);
+        if (listener == null)
+        {
+            return;
+        }
+
+        // Only one worker gets to report each interval.
+        long now = System.nanoTime();
+        long last = lastReportNanos.get();
+        if (now - last >= intervalNanos && lastReportNanos.compareAndSet(last, now))
+        {
+            report(soFar, now);
+        }
+    }
+
+    /**
+     * The last report, once everything is counted.
+     */
+    void finished()
+    {
+        if (listener != null)
+        {
+            report(done.get(), System.nanoTime());
+        }
+    }
+
+    private void report(long soFar, long now)
+    {
+        double seconds = (now - startNanos) / 1e9;
+        double perSecond = seconds > 0 ? soFar / seconds : 0;
+        long eta = perSecond > 0 ? (long) ((total - soFar) / perSecond * 1000) : -1;
+        listener.progress(soFar, total, perSecond, eta);
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+/**
+ * Where the time went in one instrumented Histogram.process() run.
+ * <p>
+ * Partition times are measured inside each Worker, so the slowest one
+ * against the average (getSkew()) shows uneven partitions. The start
+ * delay is how long the last worker to get going waited after the work
+ * was handed to the pool, which is mostly thread startup. Merge time is
+ * just the adding up, after every worker is done.
+ */
+public final class HistogramMetrics
+{
+    private final long characters;
+    private final long wallNanos;
+    private final long startDelayNanos;
+    private final long mergeNanos;
+    private final long[] partitionNanos;
+    private final long[] partitionCharacters;
+    private final long allocatedBytes;
+    private final long gcCount;
+    private final long gcMillis;
+
+    HistogramMetrics(long characters, long wallNanos, long startDelayNanos, long mergeNanos,
+                     long[] partitionNanos, long[] partitionCharacters,
+                     long allocatedBytes, long gcCount, long gcMillis)
+    {
+        this.characters = characters;
+        this.wallNanos = wallNanos;
+        this.startDelayNanos = startDelayNanos;
+        this.mergeNanos = mergeNanos;
+        this.partitionNanos = partitionNanos;
+        this.partitionCharacters = partitionCharacters;
+        this.allocatedBytes = allocatedBytes;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    public long getCharacters()
+    {
+        return characters;
+    }
+
+    /** Start to finish, including pool startup and the merge. */
+    public long getWallNanos()
+    {
+        return wallNanos;
+    }
+
+    public double getCharactersPerSecond()
+    {
+        return wallNanos == 0 ? 0 : characters * 1e9 / wallNanos;
+    }
+
+    /** Longest wait between handing the work over and a worker starting on it. */
+    public long getStartDelayNanos()
+    {
+        return startDelayNanos;
+    }
+
+    public long getMergeNanos()
+    {
+        return mergeNanos;
+    }
+
+    public int getPartitions()
+    {
+        return partitionNanos.length;
+    }
+
+    /** Counting time of each partition, in partition order. */
+    public long[] getPartitionNanos()
+    {
+        return partitionNanos.clone();
+    }
+
+    /** Size of each partition, in partition order. */
+    public long[] getPartitionCharacters()
+    {
+        return partitionCharacters.clone();
+    }
+
+    /**
+     * Slowest partition over the average partition; 1.0 means perfectly even.
+     */
+    public double getSkew()
+    {
+        long max = 0;
+        long sum = 0;
+        for (long nanos : partitionNanos)
+        {
+            max = Math.max(max, nanos);
+            sum += nanos;
+        }
+        return sum == 0 ? 1.0 : (double) max * partitionNanos.length / sum;
+    }
+
+    /**
+     * Bytes allocated by the calling thread and the workers during the
+     * run, or -1 if the JVM can't tell.
+     */
+    public long getAllocatedBytes()
+    {
+        return allocatedBytes;
+    }
+
+    /** Collections that happened during the run, in any thread. */
+    public long getGcCount()
+    {
+        return gcCount;
+    }
+
+    public long getGcMillis()
+    {
+        return gcMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d chars in %d us (%.0f chars/s): start delay %d us, merge %d us, "
+                        + "skew %.2f, partitions %s us, allocated %d bytes, gc %d (%d ms)",
+                characters, wallNanos / 1000, getCharactersPerSecond(), startDelayNanos / 1000,
+                mergeNanos / 1000, getSkew(), Arrays.toString(micros(partitionNanos)),
+                allocatedBytes, gcCount, gcMillis);
+    }
+
+    private static long[] micros(long[] nanos)
+    {
+        long[] out = new long[nanos.length];
+        for (int i = 0; i < nanos.length; ++i)
+        {
+            out[i] = nanos[i] / 1000;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,514 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Counts input from slow storage by reading and counting at the same time.
+ * <p>
+ * Histogram.process(Path) maps the file, which is great on a local disk,
+ * but on network storage every page fault is a wait with all the cores
+ * sitting idle. Here the calling thread only reads: it fills buffers from
+ * a fixed ring and hands them to counting workers, which hand them back
+ * empty when they are done. If the workers fall behind, the reader blocks
+ * waiting for an empty buffer (backpressure); if the reader falls behind,
+ * the workers wait for a full one. Buffers, worker threads and their
+ * counters are all made once per pipeline, so a run allocates nothing
+ * per buffer; close() stops the workers.
+ * <p>
+ * Counting is the same as process(Path): one byte per character. The
+ * report says how long was spent reading, counting and stalled, and how
+ * much of the reading and counting overlapped.
+ */
+public class HistogramPipeline implements AutoCloseable
+{
+    // Handed to each worker after the last real buffer.
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final int workers;
+    private final BlockingQueue<ByteBuffer> empty;
+    private final BlockingQueue<ByteBuffer> full;
+    private final ExecutorService pool;
+    private final Counter[] counters;
+    private final Activity activity = new Activity();
+
+    /**
+     * Eight 1MB buffers and one worker per processor.
+     */
+    public HistogramPipeline()
+    {
+        this(8, 1024 * 1024, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param buffers how many buffers are in the ring; at least one more
+     *        than the number of workers keeps the reader busy
+     * @param bufferSize bytes per buffer
+     * @param workers counting threads
+     */
+    public HistogramPipeline(int buffers, int bufferSize, int workers)
+    {
+        if (buffers < 1 || bufferSize < 1 || workers < 1)
+        {
+            throw new IllegalArgumentException("Need at least one buffer, byte and worker");
+        }
+        this.workers = workers;
+        this.empty = new ArrayBlockingQueue<ByteBuffer>(buffers);
+        // Room for every buffer plus an END per worker, so put() never blocks on it.
+        this.full = new ArrayBlockingQueue<ByteBuffer>(buffers + workers);
+        for (int i = 0; i < buffers; ++i)
+        {
+            empty.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        this.counters = new Counter[workers];
+        for (int i = 0; i < workers; ++i)
+        {
+            counters[i] = new Counter();
+        }
+        // Daemon threads, so a pipeline nobody closed doesn't keep the JVM up.
+        this.pool = Executors.newFixedThreadPool(workers, new ThreadFactory()
+        {
+            private int next;
+
+            @Override
+            public synchronized Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "histogram-pipeline-" + next++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Stops the worker threads, once any run in progress is over.
+     * Processing after close() is rejected.
+     */
+    @Override
+    public synchronized void close()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Reads and counts a whole file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public Report process(Path file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            return process(channel);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads and counts everything up to the end of the channel. The channel
+     * is not closed. One run at a time per pipeline, since they share the ring.
+     * Whether it returns or throws, the workers are done with every buffer
+     * by the time it does.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public synchronized Report process(ReadableByteChannel in) throws IOException
+    {
+        long start = System.nanoTime();
+        activity.reset(start);
+        List<Future<Counter>> running = new ArrayList<Future<Counter>>(workers);
+        for (Counter c : counters)
+        {
+            c.reset();
+            running.add(pool.submit(c));
+        }
+
+        long bytes = 0;
+        long ioNanos = 0;
+        long stalledNanos = 0;
+        boolean ended = false;
+        try
+        {
+            while (true)
+            {
+                long waitStart = System.nanoTime();
+                ByteBuffer buffer = empty.take();
+                long readStart = System.nanoTime();
+                stalledNanos += readStart - waitStart;
+
+                buffer.clear();
+                int n = 0;
+                boolean read = false;
+                activity.reading(true);
+                try
+                {
+                    while (buffer.hasRemaining() && (n = in.read(buffer)) != -1)
+                    {
+                    }
+                    read = true;
+                }
+                finally
+                {
+                    activity.reading(false);
+                    if (!read)
+                    {
+                        // The buffer is in neither queue now; put it back in the ring.
+                        empty.offer(buffer);
+                    }
+                }
+                ioNanos += System.nanoTime() - readStart;
+
+                if (buffer.position() > 0)
+                {
+                    buffer.flip();
+                    bytes += buffer.limit();
+                    // Never blocks (see the constructor), and unlike put() it can't be
+                    // interrupted with the buffer in neither queue.
+                    full.add(buffer);
+                }
+                else
+                {
+                    empty.offer(buffer);
+                }
+                if (n == -1)
+                {
+                    break;
+                }
+            }
+            endWorkers();
+            ended = true;
+
+            long[] totals = new long[128];
+            long computeNanos = 0;
+            long starvedNanos = 0;
+            for (Future<Counter> f : running)
+            {
+                Counter c = f.get();
+                for (int i = 0; i < totals.length; ++i)
+                {
+                    totals[i] += c.totals[i];
+                }
+                computeNanos += c.computeNanos;
+                starvedNanos += c.starvedNanos;
+            }
+
+            long countingNanos;
+            long overlapNanos;
+            synchronized (activity)
+            {
+                countingNanos = activity.countingNanos;
+                overlapNanos = activity.overlapNanos;
+            }
+            return new Report(HistogramSnapshot.wrap(totals), bytes, System.nanoTime() - start,
+                    ioNanos, computeNanos, countingNanos, overlapNanos, stalledNanos, starvedNanos, workers);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while counting");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Counting failed", e.getCause());
+        }
+        finally
+        {
+            if (!ended)
+            {
+                // Reading failed part way; the workers are waiting for more.
+                endWorkers();
+            }
+            // Make sure nobody is still using a buffer before we go.
+            awaitWorkers(running);
+            reclaimBuffers();
+        }
+    }
+
+    // full has room for an END per worker on top of every buffer, so this never blocks.
+    private void endWorkers()
+    {
+        for (int i = 0; i < workers; ++i)
+        {
+            full.add(END);
+        }
+    }
+
+    // Waits for every worker to finish, however it finishes, even if interrupted.
+    private static void awaitWorkers(List<Future<Counter>> running)
+    {
+        boolean interrupted = false;
+        for (Future<Counter> f : running)
+        {
+            while (true)
+            {
+                try
+                {
+                    f.get();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    break;
+                }
+                catch (CancellationException e)
+                {
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Put anything still queued back in the ring for the next run.
+    private void reclaimBuffers()
+    {
+        ByteBuffer b;
+        while ((b = full.poll()) != null)
+        {
+            if (b != END)
+            {
+                empty.offer(b);
+            }
+        }
+    }
+
+    // One counting stage worker: take a full buffer, count it, give it back.
+    // Each pipeline keeps its counters and resets them for every run.
+    private class Counter implements Callable<Counter>
+    {
+        final long[] totals = new long[128];
+        final int[] scratch = new int[128];
+        long computeNanos;
+        long starvedNanos;
+
+        void reset()
+        {
+            Arrays.fill(totals, 0);
+            Arrays.fill(scratch, 0);
+            computeNanos = 0;
+            starvedNanos = 0;
+        }
+
+        @Override
+        public Counter call() throws InterruptedException
+        {
+            while (true)
+            {
+                long waitStart = System.nanoTime();
+                ByteBuffer buffer = full.take();
+                long countStart = System.nanoTime();
+                starvedNanos += countStart - waitStart;
+                if (buffer == END)
+                {
+                    return this;
+                }
+
+                activity.counting(1);
+                try
+                {
+                    Histogram.countBytes(buffer, 0, buffer.limit(), scratch);
+                }
+                finally
+                {
+                    activity.counting(-1);
+                    // The ring has room for every buffer, so this never blocks.
+                    empty.offer(buffer);
+                }
+                for (int i = 0; i < scratch.length; ++i)
+                {
+                    totals[i] += scratch[i];
+                    scratch[i] = 0;
+                }
+                computeNanos += System.nanoTime() - countStart;
+            }
+        }
+    }
+
+    // When reading and counting were going on at the same time. The reader and
+    // the workers report every start and stop; in between nothing changes, so
+    // each interval goes to whatever was running during it. That's two short
+    // locked calls per buffer, on buffers a megabyte long.
+    private static class Activity
+    {
+        private boolean reading;
+        private int counting;
+        private long since;
+        long countingNanos;
+        long overlapNanos;
+
+        synchronized void reset(long now)
+        {
+            reading = false;
+            counting = 0;
+            since = now;
+            countingNanos = 0;
+            overlapNanos = 0;
+        }
+
+        synchronized void reading(boolean reading)
+        {
+            advance();
+            this.reading = reading;
+        }
+
+        synchronized void counting(int change)
+        {
+            advance();
+            counting += change;
+        }
+
+        private void advance()
+        {
+            long now = System.nanoTime();
+            if (counting > 0)
+            {
+                countingNanos += now - since;
+                if (reading)
+                {
+                    overlapNanos += now - since;
+                }
+            }
+            since = now;
+        }
+    }
+
+    /**
+     * What a pipeline run counted and where its time went.
+     */
+    public static class Report
+    {
+        private final HistogramSnapshot histogram;
+        private final long bytes;
+        private final long wallNanos;
+        private final long ioNanos;
+        private final long computeNanos;
+        private final long countingNanos;
+        private final long overlapNanos;
+        private final long readerStalledNanos;
+        private final long workersStarvedNanos;
+        private final int workers;
+
+        Report(HistogramSnapshot histogram, long bytes, long wallNanos, long ioNanos, long computeNanos,
+               long countingNanos, long overlapNanos, long readerStalledNanos, long workersStarvedNanos,
+               int workers)
+        {
+            this.histogram = histogram;
+            this.bytes = bytes;
+            this.wallNanos = wallNanos;
+            this.ioNanos = ioNanos;
+            this.computeNanos = computeNanos;
+            this.countingNanos = countingNanos;
+            this.overlapNanos = overlapNanos;
+            this.readerStalledNanos = readerStalledNanos;
+            this.workersStarvedNanos = workersStarvedNanos;
+            this.workers = workers;
+        }
+
+        public HistogramSnapshot getHistogram()
+        {
+            return histogram;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /** Start to finish. */
+        public long getWallNanos()
+        {
+            return wallNanos;
+        }
+
+        /** Time the reader spent in read calls. */
+        public long getIoNanos()
+        {
+            return ioNanos;
+        }
+
+        /** Time spent counting, added up over all workers. */
+        public long getComputeNanos()
+        {
+            return computeNanos;
+        }
+
+        /** Wall time during which at least one worker was counting. */
+        public long getCountingNanos()
+        {
+            return countingNanos;
+        }
+
+        /** Time the reader waited for an empty buffer, i.e. the counting was the bottleneck. */
+        public long getReaderStalledNanos()
+        {
+            return readerStalledNanos;
+        }
+
+        /** Time the workers waited for a full buffer, added up, i.e. the reading was the bottleneck. */
+        public long getWorkersStarvedNanos()
+        {
+            return workersStarvedNanos;
+        }
+
+        /**
+         * Wall time during which a read was in progress and at least one
+         * worker was counting.
+         */
+        public long getOverlapNanos()
+        {
+            return overlapNanos;
+        }
+
+        /**
+         * Overlap as a fraction of the shorter of reading and counting, both
+         * as wall time; 1.0 means the shorter one was completely hidden
+         * behind the other.
+         */
+        public double getOverlapRatio()
+        {
+            long shorter = Math.min(ioNanos, countingNanos);
+            return shorter == 0 ? 0 : Math.min(1.0, (double) overlapNanos / shorter);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d bytes in %d ms: io %d ms, compute %d ms (%d workers, %d ms wall), "
+                            + "reader stalled %d ms, workers starved %d ms, overlap %d ms (%.0f%%)",
+                    bytes, wallNanos / 1000000, ioNanos / 1000000, computeNanos / 1000000, workers,
+                    countingNanos / 1000000,
+                    readerStalledNanos / 1000000, workersStarvedNanos / 1000000,
+                    getOverlapNanos() / 1000000, getOverlapRatio() * 100);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Timings for one Histogram.process() run, taken only when someone is
+ * looking: Histogram.setMetricsEnabled(true), or a JFR recording with the
+ * Histogram events turned on.
+ * <p>
+ * When neither is on there is no probe at all. process() checks for one
+ * once per call and each Worker once per partition, and the counting loop
+ * itself is never touched either way.
+ */
+class HistogramProbe
+{
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    // Asked on every run, so nothing is allocated just to find out the answer is no.
+    private static final EventType RUN_EVENT = EventType.getEventType(RunEvent.class);
+    private static final EventType PARTITION_EVENT = EventType.getEventType(PartitionEvent.class);
+
+    private final int partitions;
+    private final long characters;
+    private final RunEvent event;
+    private final long runStart;
+    private final long allocatedBefore;
+    private final long gcCountBefore;
+    private final long gcMillisBefore;
+    private final AtomicLongArray partitionNanos;
+    private final AtomicLongArray partitionCharacters;
+    private final AtomicLong workerAllocated = new AtomicLong();
+    private final AtomicLong startDelay = new AtomicLong();
+    private long submittedAt;
+    private long mergeStart;
+
+    private HistogramProbe(RunEvent event, long characters, int partitions)
+    {
+        this.event = event;
+        this.characters = characters;
+        this.partitions = partitions;
+        this.partitionNanos = new AtomicLongArray(partitions);
+        this.partitionCharacters = new AtomicLongArray(partitions);
+        this.allocatedBefore = allocatedBytes();
+        long[] gc = gcTotals();
+        this.gcCountBefore = gc[0];
+        this.gcMillisBefore = gc[1];
+        // After the MXBean calls, which are slow the first time.
+        this.runStart = System.nanoTime();
+        this.submittedAt = runStart;
+        event.begin();
+    }
+
+    /**
+     * A probe for a run, or null if nobody wants one.
+     *
+     * @param wanted whether metrics were asked for directly
+     */
+    static HistogramProbe start(boolean wanted, long characters, int partitions)
+    {
+        if (!wanted && !RUN_EVENT.isEnabled())
+        {
+            return null;
+        }
+        return new HistogramProbe(new RunEvent(), characters, partitions);
+    }
+
+    /** The partitions have just been handed to the pool. */
+    void submitted()
+    {
+        submittedAt = System.nanoTime();
+    }
+
+    /**
+     * Counts text[from..to) into output, the same as Histogram.countChars(),
+     * and records how long it took. Called on the worker's thread.
+     */
+    void countPartition(int partition, char[] text, int from, int to, int[] output)
+    {
+        long startedAt = System.nanoTime();
+        long delay = startedAt - submittedAt;
+        long seen;
+        while (delay > (seen = startDelay.get()) && !startDelay.compareAndSet(seen, delay))
+        {
+        }
+        long allocatedAtStart = allocatedBytes();
+
+        Histogram.countChars(text, from, to, output);
+
+        long nanos = System.nanoTime() - startedAt;
+        partitionNanos.set(partition, nanos);
+        partitionCharacters.set(partition, to - from);
+        if (allocatedAtStart >= 0)
+        {
+            workerAllocated.addAndGet(allocatedBytes() - allocatedAtStart);
+        }
+
+        if (PARTITION_EVENT.isEnabled())
+        {
+            PartitionEvent partitionEvent = new PartitionEvent();
+            partitionEvent.partition = partition;
+            partitionEvent.characters = to - from;
+            partitionEvent.countingTime = nanos;
+            partitionEvent.charactersPerSecond = nanos == 0 ? 0 : (to - from) * 1e9 / nanos;
+            partitionEvent.commit();
+        }
+    }
+
+    /** Every worker is done and the adding up starts. */
+    void mergeStarted()
+    {
+        mergeStart = System.nanoTime();
+    }
+
+    /** The run is over; the caller's thread, same as start(). */
+    HistogramMetrics finish()
+    {
+        long end = System.nanoTime();
+        long mergeNanos = mergeStart == 0 ? 0 : end - mergeStart;
+        long allocated = allocatedBefore < 0 ? -1
+                : allocatedBytes() - allocatedBefore + workerAllocated.get();
+        long[] gc = gcTotals();
+
+        long[] nanos = new long[partitions];
+        long[] sizes = new long[partitions];
+        for (int i = 0; i < partitions; ++i)
+        {
+            nanos[i] = partitionNanos.get(i);
+            sizes[i] = partitionCharacters.get(i);
+        }
+        HistogramMetrics metrics = new HistogramMetrics(characters, end - runStart, startDelay.get(),
+                mergeNanos, nanos, sizes, allocated, gc[0] - gcCountBefore, gc[1] - gcMillisBefore);
+
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.characters = characters;
+            event.partitions = partitions;
+            event.charactersPerSecond = metrics.getCharactersPerSecond();
+            event.startDelay = metrics.getStartDelayNanos();
+            event.merge = mergeNanos;
+            event.skew = metrics.getSkew();
+            event.allocated = allocated;
+            event.commit();
+        }
+        return metrics;
+    }
+
+    /**
+     * Bytes this thread has allocated so far, or -1 if the JVM doesn't keep
+     * track (HotSpot does).
+     */
+    static long allocatedBytes()
+    {
+        if (THREADS instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long[] gcTotals()
+    {
+        long count = 0;
+        long millis = 0;
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean collector : collectors)
+        {
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+
+    @Name("histogram.Run")
+    @Label("Histogram Run")
+    @Category("Histogram")
+    @Description("One Histogram.process() call")
+    static class RunEvent extends Event
+    {
+        @Label("Characters")
+        long characters;
+
+        @Label("Partitions")
+        int partitions;
+
+        @Label("Characters per Second")
+        double charactersPerSecond;
+
+        @Label("Start Delay")
+        @Description("Longest wait for a worker to start on its partition")
+        @Timespan(Timespan.NANOSECONDS)
+        long startDelay;
+
+        @Label("Merge Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long merge;
+
+        @Label("Skew")
+        @Description("Slowest partition over the average partition")
+        double skew;
+
+        @Label("Allocated")
+        @DataAmount(DataAmount.BYTES)
+        long allocated;
+    }
+
+    @Name("histogram.Partition")
+    @Label("Histogram Partition")
+    @Category("Histogram")
+    @Description("One Worker counting its partition")
+    static class PartitionEvent extends Event
+    {
+        @Label("Partition")
+        int partition;
+
+        @Label("Characters")
+        long characters;
+
+        @Label("Counting Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long countingTime;
+
+        @Label("Characters per Second")
+        double charactersPerSecond;
+    }
+}
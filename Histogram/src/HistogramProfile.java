@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * The tuning numbers Histogram uses to decide when and how to go parallel:
+ * the input size below which threads are not worth it, and how many
+ * partitions to cut bigger inputs into.
+ * <p>
+ * These are measured by HistogramCalibration and kept in a small
+ * properties file, so a machine only has to be measured once.
+ */
+public class HistogramProfile
+{
+    private static final String THRESHOLD = "doNotMultiThreadIfLessThan";
+    private static final String PARTITIONS = "partitions";
+    private static final String PROCESSORS = "processors";
+    private static final String ARCH = "arch";
+
+    private final int doNotMultiThreadIfLessThan;
+    private final int partitions;
+    private final int processors;
+    private final String arch;
+
+    public HistogramProfile(int doNotMultiThreadIfLessThan, int partitions)
+    {
+        this(doNotMultiThreadIfLessThan, partitions,
+                Runtime.getRuntime().availableProcessors(), System.getProperty("os.arch"));
+    }
+
+    private HistogramProfile(int doNotMultiThreadIfLessThan, int partitions, int processors, String arch)
+    {
+        if (doNotMultiThreadIfLessThan < 0 || partitions < 1)
+        {
+            throw new IllegalArgumentException("Bad profile: threshold " + doNotMultiThreadIfLessThan
+                    + ", partitions " + partitions);
+        }
+        this.doNotMultiThreadIfLessThan = doNotMultiThreadIfLessThan;
+        this.partitions = partitions;
+        this.processors = processors;
+        this.arch = arch;
+    }
+
+    /**
+     * The hand-picked numbers Histogram has always used.
+     */
+    public static HistogramProfile defaults()
+    {
+        return new HistogramProfile(1000, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Where the profile lives unless told otherwise: the histogram.profile
+     * system property, or .histogram-profile.properties in the home directory.
+     */
+    public static Path defaultLocation()
+    {
+        String location = System.getProperty("histogram.profile");
+        if (location != null)
+        {
+            return Paths.get(location);
+        }
+        return Paths.get(System.getProperty("user.home"), ".histogram-profile.properties");
+    }
+
+    /**
+     * Reads a profile back in.
+     *
+     * @param file
+     * @return the profile, or null if there is no file there yet
+     * @throws IOException if the file exists but can't be read or parsed
+     */
+    public static HistogramProfile load(Path file) throws IOException
+    {
+        if (!Files.exists(file))
+        {
+            return null;
+        }
+
+        Properties props = new Properties();
+        InputStream in = Files.newInputStream(file);
+        try
+        {
+            props.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        try
+        {
+            return new HistogramProfile(
+                    Integer.parseInt(props.getProperty(THRESHOLD)),
+                    Integer.parseInt(props.getProperty(PARTITIONS)),
+                    Integer.parseInt(props.getProperty(PROCESSORS)),
+                    props.getProperty(ARCH));
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Unreadable histogram profile " + file, e);
+        }
+    }
+
+    /**
+     * Writes this profile out, replacing whatever was there.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(Path file) throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty(THRESHOLD, Integer.toString(doNotMultiThreadIfLessThan));
+        props.setProperty(PARTITIONS, Integer.toString(partitions));
+        props.setProperty(PROCESSORS, Integer.toString(processors));
+        props.setProperty(ARCH, String.valueOf(arch));
+
+        OutputStream out = Files.newOutputStream(file);
+        try
+        {
+            props.store(out, "Histogram calibration");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * A profile measured on a box with a different core count or CPU
+     * doesn't tell us anything about this one.
+     */
+    public boolean matchesThisMachine()
+    {
+        return processors == Runtime.getRuntime().availableProcessors()
+                && String.valueOf(System.getProperty("os.arch")).equals(arch);
+    }
+
+    public int getDoNotMultiThreadIfLessThan()
+    {
+        return doNotMultiThreadIfLessThan;
+    }
+
+    public int getPartitions()
+    {
+        return partitions;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "threshold " + doNotMultiThreadIfLessThan + ", partitions " + partitions
+                + " (" + processors + " processors, " + arch + ")";
+    }
+}
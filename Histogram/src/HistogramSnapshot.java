@@ -0,0 +1,185 @@
+import java.util.Arrays;
+
+/**
+ * An immutable copy of histogram counts at one point in time.
+ * <p>
+ * Counts are longs so nothing overflows on big inputs. Snapshots from
+ * different threads, streams or machines can be merged into a new
+ * snapshot as long as they have the same number of buckets.
+ */
+public final class HistogramSnapshot
+{
+    private final long[] counts;
+    private final long total;
+
+    /**
+     * Makes a snapshot from a copy of the given counts.
+     *
+     * @param counts
+     */
+    public HistogramSnapshot(long[] counts)
+    {
+        this(counts.clone(), sum(counts));
+    }
+
+    // Takes ownership of counts, no copy.
+    private HistogramSnapshot(long[] counts, long total)
+    {
+        this.counts = counts;
+        this.total = total;
+    }
+
+    /**
+     * Wraps an array this package just built and won't touch again.
+     */
+    static HistogramSnapshot wrap(long[] counts)
+    {
+        return new HistogramSnapshot(counts, sum(counts));
+    }
+
+    private static long sum(long[] counts)
+    {
+        long sum = 0;
+        for (long c : counts)
+        {
+            sum += c;
+        }
+        return sum;
+    }
+
+    /**
+     * Makes a snapshot from int counts, like Histogram's.
+     *
+     * @param counts
+     * @return
+     */
+    public static HistogramSnapshot of(int[] counts)
+    {
+        long[] copy = new long[counts.length];
+        for (int i = 0; i < counts.length; ++i)
+        {
+            copy[i] = counts[i];
+        }
+        return wrap(copy);
+    }
+
+    /**
+     * An all-zero snapshot, handy as the starting point for merging.
+     *
+     * @param buckets
+     * @return
+     */
+    public static HistogramSnapshot empty(int buckets)
+    {
+        return wrap(new long[buckets]);
+    }
+
+    public int getBuckets()
+    {
+        return counts.length;
+    }
+
+    public long getCount(int bucket)
+    {
+        return counts[bucket];
+    }
+
+    /**
+     * Sum of all buckets.
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * A copy of the counts.
+     */
+    public long[] toArray()
+    {
+        return counts.clone();
+    }
+
+    /**
+     * Combines two snapshots into a new one. Neither input changes.
+     *
+     * @param other
+     * @return
+     */
+    public HistogramSnapshot merge(HistogramSnapshot other)
+    {
+        if (other.counts.length != counts.length)
+        {
+            throw new IllegalArgumentException("Can't merge " + counts.length
+                    + " buckets with " + other.counts.length);
+        }
+        long[] sum = counts.clone();
+        for (int i = 0; i < sum.length; ++i)
+        {
+            sum[i] += other.counts[i];
+        }
+        return wrap(sum);
+    }
+
+    /**
+     * Combines any number of snapshots in one pass.
+     *
+     * @param snapshots at least one
+     * @return
+     */
+    public static HistogramSnapshot mergeAll(Iterable<HistogramSnapshot> snapshots)
+    {
+        long[] sum = null;
+        for (HistogramSnapshot s : snapshots)
+        {
+            if (sum == null)
+            {
+                sum = s.counts.clone();
+                continue;
+            }
+            if (s.counts.length != sum.length)
+            {
+                throw new IllegalArgumentException("Can't merge " + sum.length
+                        + " buckets with " + s.counts.length);
+            }
+            for (int i = 0; i < sum.length; ++i)
+            {
+                sum[i] += s.counts[i];
+            }
+        }
+        if (sum == null)
+        {
+            throw new IllegalArgumentException("Nothing to merge");
+        }
+        return wrap(sum);
+    }
+
+    /**
+     * Displays histogram contents, same layout as Histogram.display().
+     */
+    public void display()
+    {
+        for (long c : counts)
+        {
+            System.out.println(c);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof HistogramSnapshot && Arrays.equals(counts, ((HistogramSnapshot) o).counts);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(counts);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HistogramSnapshot[" + counts.length + " buckets, total " + total + "]";
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * One worker process of a DistributedHistogram.
+ * <p>
+ * Listens for coordinators, and for each connection reads ShardRequests
+ * and writes back ShardResults, the same request/reply-by-correlation-id
+ * scheme as the MessagingCalculator server. Requests on one connection
+ * are counted concurrently on a shared HistogramEngine, so replies can
+ * come back in any order.
+ * <p>
+ * Usage: java HistogramWorker [port] (default 2223)
+ */
+public class HistogramWorker
+{
+    public static final int DEFAULT_PORT = 2223;
+
+    private final HistogramEngine engine;
+    private volatile ServerSocket serverSocket;
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        HistogramEngine engine = new HistogramEngine();
+        try
+        {
+            new HistogramWorker(engine).runServer(port);
+        }
+        finally
+        {
+            engine.close();
+        }
+    }
+
+    /**
+     * @param engine does the counting; not closed by the worker
+     */
+    public HistogramWorker(HistogramEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Accepts coordinators until stop() is called or accepting fails.
+     *
+     * @param port
+     * @throws IOException if the port can't be listened on
+     */
+    public void runServer(int port) throws IOException
+    {
+        serverSocket = new ServerSocket(port);
+        System.out.println("Histogram worker listening on " + port);
+        try
+        {
+            while (true)
+            {
+                Socket s = serverSocket.accept();
+                Thread handler = new Thread(new Connection(s), "histogram-worker-" + s.getRemoteSocketAddress());
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }
+        catch (SocketException e)
+        {
+            // stop() closed the socket
+        }
+        finally
+        {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Stops accepting new coordinators. Connections already open carry on.
+     */
+    public void stop()
+    {
+        ServerSocket ss = serverSocket;
+        if (ss != null)
+        {
+            try
+            {
+                ss.close();
+            }
+            catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * Counts one shard; the reply says what went wrong instead of throwing.
+     */
+    ShardResult count(ShardRequest request)
+    {
+        try
+        {
+            FileChannel channel = FileChannel.open(Paths.get(request.getPath()), StandardOpenOption.READ);
+            try
+            {
+                MappedByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY,
+                        request.getPosition(), request.getLength());
+                int[] counts = engine.count(range, 0, (int) request.getLength());
+                ByteBuffer encoded = HistogramCodec.encode(HistogramSnapshot.of(counts));
+                byte[] bytes = new byte[encoded.remaining()];
+                encoded.get(bytes);
+                return ShardResult.success(request.getId(), bytes);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch (Exception e)
+        {
+            return ShardResult.failure(request.getId(), e.toString());
+        }
+    }
+
+    // One coordinator's connection: read requests, count them on a small pool, write replies.
+    private class Connection implements Runnable
+    {
+        private final Socket s;
+        private ObjectOutputStream oos;
+
+        // A couple of shards at a time, so one can be read in while another counts.
+        private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+        Connection(Socket s)
+        {
+            this.s = s;
+        }
+
+        public void run()
+        {
+            try
+            {
+                // Replies are small and the coordinator is waiting on each one.
+                s.setTcpNoDelay(true);
+                oos = new ObjectOutputStream(s.getOutputStream());
+                oos.flush();
+                ObjectInputStream ois = new ObjectInputStream(s.getInputStream());
+                while (true)
+                {
+                    final ShardRequest request = (ShardRequest) ois.readObject();
+                    pool.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            reply(count(request));
+                        }
+                    });
+                }
+            }
+            catch (ClassNotFoundException e)
+            {
+                System.out.println("Class not found: " + e);
+            }
+            catch (IOException e)
+            {
+                // coordinator went away
+            }
+            finally
+            {
+                pool.shutdown();
+                try
+                {
+                    s.close();
+                }
+                catch (IOException ignore) {}
+            }
+        }
+
+        private void reply(ShardResult result)
+        {
+            try
+            {
+                synchronized (this)
+                {
+                    oos.writeObject(result);
+                    // Each reply is a new object anyway, and this keeps the stream's handle table small.
+                    oos.reset();
+                    oos.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                System.out.println("Couldn't send shard result: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+/**
+ * A bare-bones int to long hash map for counting, with no boxing.
+ * <p>
+ * Open addressing with linear probing in two parallel arrays. Keys are
+ * never removed, which keeps probing simple: an empty slot always ends
+ * the search. Not thread safe.
+ */
+public class IntLongMap
+{
+    // Keys are stored +1 so that 0 can mean "empty" without a separate array.
+    private int[] keys;
+    private long[] values;
+    private int size;
+    private int mask;
+
+    public IntLongMap()
+    {
+        this(16);
+    }
+
+    public IntLongMap(int expectedSize)
+    {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize)
+        {
+            capacity *= 2;
+        }
+        keys = new int[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds delta to the count for key. Key must not be -1.
+     *
+     * @param key
+     * @param delta
+     */
+    public void add(int key, long delta)
+    {
+        int stored = key + 1;
+        int slot = mix(stored) & mask;
+        while (true)
+        {
+            int k = keys[slot];
+            if (k == stored)
+            {
+                values[slot] += delta;
+                return;
+            }
+            if (k == 0)
+            {
+                keys[slot] = stored;
+                values[slot] = delta;
+                if (++size * 4 > keys.length * 3)
+                {
+                    grow();
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @param key
+     * @return the count for key, 0 if it was never added
+     */
+    public long get(int key)
+    {
+        int stored = key + 1;
+        int slot = mix(stored) & mask;
+        while (true)
+        {
+            int k = keys[slot];
+            if (k == stored)
+            {
+                return values[slot];
+            }
+            if (k == 0)
+            {
+                return 0;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Adds every count in other into this map.
+     *
+     * @param other
+     */
+    public void addAll(IntLongMap other)
+    {
+        for (int i = 0; i < other.keys.length; ++i)
+        {
+            if (other.keys[i] != 0)
+            {
+                add(other.keys[i] - 1, other.values[i]);
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /**
+     * The keys, in no particular order.
+     */
+    public int[] keys()
+    {
+        int[] out = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; ++i)
+        {
+            if (keys[i] != 0)
+            {
+                out[n++] = keys[i] - 1;
+            }
+        }
+        return out;
+    }
+
+    private void grow()
+    {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i)
+        {
+            int stored = oldKeys[i];
+            if (stored != 0)
+            {
+                int slot = mix(stored) & mask;
+                while (keys[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = stored;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // Code points cluster in blocks, so spread them out before masking.
+    private static int mix(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Arrays;
+
+/**
+ * A bare-bones long to long hash map for counting, with no boxing.
+ * Same design as IntLongMap, for keys that need more than 32 bits.
+ * <p>
+ * Open addressing with linear probing in two parallel arrays. Keys are
+ * never removed, which keeps probing simple: an empty slot always ends
+ * the search. Not thread safe.
+ */
+public class LongLongMap
+{
+    // Keys are stored +1 so that 0 can mean "empty" without a separate array.
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private int mask;
+
+    public LongLongMap()
+    {
+        this(16);
+    }
+
+    public LongLongMap(int expectedSize)
+    {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize)
+        {
+            capacity *= 2;
+        }
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds delta to the count for key. Key must not be -1.
+     *
+     * @param key
+     * @param delta
+     */
+    public void add(long key, long delta)
+    {
+        long stored = key + 1;
+        int slot = mix(stored) & mask;
+        while (true)
+        {
+            long k = keys[slot];
+            if (k == stored)
+            {
+                values[slot] += delta;
+                return;
+            }
+            if (k == 0)
+            {
+                keys[slot] = stored;
+                values[slot] = delta;
+                if (++size * 4 > keys.length * 3)
+                {
+                    grow();
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @param key
+     * @return the count for key, 0 if it was never added
+     */
+    public long get(long key)
+    {
+        long stored = key + 1;
+        int slot = mix(stored) & mask;
+        while (true)
+        {
+            long k = keys[slot];
+            if (k == stored)
+            {
+                return values[slot];
+            }
+            if (k == 0)
+            {
+                return 0;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Adds every count in other into this map.
+     *
+     * @param other
+     */
+    public void addAll(LongLongMap other)
+    {
+        for (int i = 0; i < other.keys.length; ++i)
+        {
+            if (other.keys[i] != 0)
+            {
+                add(other.keys[i] - 1, other.values[i]);
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /**
+     * The keys, in no particular order.
+     */
+    public long[] keys()
+    {
+        long[] out = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; ++i)
+        {
+            if (keys[i] != 0)
+            {
+                out[n++] = keys[i] - 1;
+            }
+        }
+        return out;
+    }
+
+    private void grow()
+    {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i)
+        {
+            long stored = oldKeys[i];
+            if (stored != 0)
+            {
+                int slot = mix(stored) & mask;
+                while (keys[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = stored;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // Packed keys differ mostly in their low bits, so spread them out before masking.
+    private static int mix(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
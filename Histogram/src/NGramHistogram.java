@@ -0,0 +1,195 @@
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts bigrams or trigrams: every run of 2 (or 3) consecutive chars.
+ * <p>
+ * Each n-gram is packed into one long key, 16 bits per char, so counting
+ * is one hash-table add with no Strings or boxing. The table is a
+ * LongLongMap; a trigram needs 48 bits, so bigrams use the same table
+ * rather than a second int-keyed one.
+ * <p>
+ * With an engine, the text is split in halves down to a leaf size and
+ * each leaf counts into its own table; tables are then merged pairwise
+ * on the way back up the task tree, so the merging runs in parallel too.
+ * A leaf counts the n-grams that start inside it and reads up to n-1
+ * chars past its end, so n-grams that straddle a split are counted once,
+ * by the leaf they start in.
+ */
+public class NGramHistogram
+{
+    // Leaves are bigger than HistogramEngine's because every leaf gets its own table.
+    private static final int LEAF_SIZE = 256 * 1024;
+
+    private final int n;
+    private final HistogramEngine engine;
+    private LongLongMap counts = new LongLongMap();
+
+    /**
+     * Counts on the calling thread.
+     *
+     * @param n 2 for bigrams, 3 for trigrams
+     */
+    public NGramHistogram(int n)
+    {
+        this(n, null);
+    }
+
+    /**
+     * Splits big inputs across an engine's pool. The engine is not closed
+     * by this histogram.
+     *
+     * @param n 2 for bigrams, 3 for trigrams
+     * @param engine
+     */
+    public NGramHistogram(int n, HistogramEngine engine)
+    {
+        if (n != 2 && n != 3)
+        {
+            throw new IllegalArgumentException("Only bigrams and trigrams are supported, not " + n);
+        }
+        this.n = n;
+        this.engine = engine;
+    }
+
+    /**
+     * Counts every n-gram in the text, replacing earlier counts.
+     *
+     * @param text
+     */
+    public void process(char[] text)
+    {
+        if (engine == null || text.length <= LEAF_SIZE)
+        {
+            LongLongMap output = new LongLongMap();
+            count(text, 0, text.length, output);
+            counts = output;
+            return;
+        }
+        counts = engine.getPool().invoke(new Task(text, 0, text.length));
+    }
+
+    /**
+     * How many times an n-gram was seen.
+     *
+     * @param ngram exactly n chars
+     * @return
+     */
+    public long getCount(CharSequence ngram)
+    {
+        if (ngram.length() != n)
+        {
+            throw new IllegalArgumentException("Expected " + n + " chars, got \"" + ngram + "\"");
+        }
+        long key = 0;
+        for (int i = 0; i < n; ++i)
+        {
+            key = (key << 16) | ngram.charAt(i);
+        }
+        return counts.get(key);
+    }
+
+    /**
+     * How many different n-grams were seen.
+     */
+    public int size()
+    {
+        return counts.size();
+    }
+
+    /**
+     * The packed keys of every n-gram seen, in no particular order.
+     * Use toString(key) to turn one back into text.
+     */
+    public long[] keys()
+    {
+        return counts.keys();
+    }
+
+    /**
+     * Count for a packed key from keys().
+     */
+    public long getCount(long key)
+    {
+        return counts.get(key);
+    }
+
+    /**
+     * Turns a packed key back into its n chars.
+     *
+     * @param key
+     * @return
+     */
+    public String toString(long key)
+    {
+        char[] chars = new char[n];
+        for (int i = n - 1; i >= 0; --i)
+        {
+            chars[i] = (char) key;
+            key >>>= 16;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Counts the n-grams starting in text[from..to). May read up to n-1
+     * chars past to, if the text has them.
+     */
+    private void count(char[] text, int from, int to, LongLongMap output)
+    {
+        int last = Math.min(to, text.length - n + 1);
+        if (n == 2)
+        {
+            for (int i = from; i < last; ++i)
+            {
+                output.add(((long) text[i] << 16) | text[i + 1], 1);
+            }
+        }
+        else
+        {
+            for (int i = from; i < last; ++i)
+            {
+                output.add(((long) text[i] << 32) | ((long) text[i + 1] << 16) | text[i + 2], 1);
+            }
+        }
+    }
+
+    private class Task extends RecursiveTask<LongLongMap>
+    {
+        private final char[] text;
+        private final int from;
+        private final int to;
+
+        Task(char[] text, int from, int to)
+        {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected LongLongMap compute()
+        {
+            if (to - from <= LEAF_SIZE)
+            {
+                LongLongMap output = new LongLongMap();
+                count(text, from, to, output);
+                return output;
+            }
+
+            int middle = (from + to) >>> 1;
+            Task left = new Task(text, from, middle);
+            left.fork();
+            LongLongMap right = new Task(text, middle, to).compute();
+            LongLongMap other = left.join();
+
+            // Fold the smaller table into the bigger one.
+            if (right.size() >= other.size())
+            {
+                right.addAll(other);
+                return right;
+            }
+            other.addAll(right);
+            return other;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+/**
+ * Gets told how far along an asynchronous histogram run is.
+ */
+public interface ProgressListener
+{
+    /**
+     * Called every so often while the run is going, and once more when it
+     * finishes. This executes in the context of whichever worker thread
+     * noticed it was time, so keep it short.
+     *
+     * @param done characters (or bytes, for files) counted so far
+     * @param total characters (or bytes) in the whole input
+     * @param perSecond throughput so far
+     * @param etaMillis estimated time left, -1 until there's enough to go on
+     */
+    void progress(long done, long total, double perSecond, long etaMillis);
+}
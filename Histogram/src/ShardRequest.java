@@ -0,0 +1,49 @@
+import java.io.Serializable;
+
+/**
+ * Asks a HistogramWorker to count one range of one file.
+ * <p>
+ * The path is resolved on the worker, so every worker has to see the
+ * files at the same path as the coordinator (a shared or copied corpus).
+ */
+public class ShardRequest implements Serializable
+{
+    private int id;
+    private String path;
+    private long position;
+    private long length;
+
+    public ShardRequest(int id, String path, long position, long length)
+    {
+        this.id = id;
+        this.path = path;
+        this.position = position;
+        this.length = length;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    public long getPosition()
+    {
+        return position;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path + " [" + position + ", " + (position + length) + ")";
+    }
+}
@@ -0,0 +1,53 @@
+import java.io.Serializable;
+
+/**
+ * A HistogramWorker's answer to a ShardRequest: the counts, in
+ * HistogramCodec form, or what went wrong.
+ */
+public class ShardResult implements Serializable
+{
+    private int correlationId;
+    private byte[] counts;
+    private String error;
+
+    private ShardResult(int correlationId, byte[] counts, String error)
+    {
+        this.correlationId = correlationId;
+        this.counts = counts;
+        this.error = error;
+    }
+
+    public static ShardResult success(int correlationId, byte[] counts)
+    {
+        return new ShardResult(correlationId, counts, null);
+    }
+
+    public static ShardResult failure(int correlationId, String error)
+    {
+        return new ShardResult(correlationId, null, error);
+    }
+
+    /**
+     * The id of the request this answers.
+     */
+    public int getCorrelationId()
+    {
+        return correlationId;
+    }
+
+    /**
+     * HistogramCodec encoded counts, or null if the shard failed.
+     */
+    public byte[] getCounts()
+    {
+        return counts;
+    }
+
+    /**
+     * Why the shard failed, or null if it didn't.
+     */
+    public String getError()
+    {
+        return error;
+    }
+}
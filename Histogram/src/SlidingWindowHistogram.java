@@ -0,0 +1,151 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An ASCII histogram of only the most recent stretch of time, e.g.
+ * "character counts over the last five minutes, in 10 second steps".
+ * <p>
+ * Time is cut into slots of the chosen resolution, and the window is a
+ * ring of those slots, each with its own 128 bucket counts. A running
+ * total over the whole window is kept next to the ring: new characters
+ * are added to the current slot and the total, and when a slot falls out
+ * of the window its counts are subtracted from the total and it is
+ * reused for the new time. So asking for the window never looks at the
+ * data again; it is just a copy of the 128 totals.
+ * <p>
+ * Not thread safe; synchronize around it or give each thread its own and
+ * merge the snapshots.
+ */
+public class SlidingWindowHistogram
+{
+    private final long[][] slots;
+    private final long[] totals = new long[128];
+    private final long resolutionNanos;
+    private final int[] scratch = new int[128];
+
+    // The slot number (time / resolution) the ring was last brought up to.
+    private long currentSlot;
+
+    /**
+     * @param window how far back to keep counts
+     * @param resolution how finely to step through time; the window is
+     *        rounded up to a whole number of these
+     * @param unit unit of window and resolution
+     */
+    public SlidingWindowHistogram(long window, long resolution, TimeUnit unit)
+    {
+        if (resolution <= 0 || window < resolution)
+        {
+            throw new IllegalArgumentException("Need 0 < resolution <= window, got "
+                    + resolution + " and " + window);
+        }
+        long slotCount = (window + resolution - 1) / resolution;
+        if (slotCount > 1 << 20)
+        {
+            throw new IllegalArgumentException("Too many slots: " + slotCount);
+        }
+        this.resolutionNanos = unit.toNanos(resolution);
+        this.slots = new long[(int) slotCount][128];
+        this.currentSlot = Math.floorDiv(System.nanoTime(), resolutionNanos);
+    }
+
+    /**
+     * Records text[offset..offset+length) as happening now.
+     *
+     * @param text
+     * @param offset
+     * @param length
+     */
+    public void record(char[] text, int offset, int length)
+    {
+        record(text, offset, length, System.nanoTime());
+    }
+
+    /**
+     * Records text[offset..offset+length) as happening at the given
+     * System.nanoTime() value. Times older than the window are ignored;
+     * times a little in the past still land in their own slot.
+     */
+    void record(char[] text, int offset, int length, long nanoTime)
+    {
+        if (offset < 0 || length < 0 || offset + length > text.length)
+        {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+                    + ", array " + text.length);
+        }
+
+        long slot = Math.floorDiv(nanoTime, resolutionNanos);
+        advanceTo(slot);
+        if (slot <= currentSlot - slots.length)
+        {
+            return;
+        }
+
+        Histogram.countChars(text, offset, offset + length, scratch);
+        long[] target = slots[index(slot)];
+        for (int i = 0; i < 128; ++i)
+        {
+            int c = scratch[i];
+            if (c != 0)
+            {
+                target[i] += c;
+                totals[i] += c;
+                scratch[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Counts over the window ending now. O(buckets), whatever was recorded.
+     */
+    public HistogramSnapshot snapshot()
+    {
+        return snapshot(System.nanoTime());
+    }
+
+    HistogramSnapshot snapshot(long nanoTime)
+    {
+        advanceTo(Math.floorDiv(nanoTime, resolutionNanos));
+        return HistogramSnapshot.wrap(totals.clone());
+    }
+
+    /**
+     * Count for one character over the window ending now.
+     *
+     * @param ch
+     * @return
+     */
+    public long getCount(int ch)
+    {
+        advanceTo(Math.floorDiv(System.nanoTime(), resolutionNanos));
+        return totals[Math.min(ch, 127)];
+    }
+
+    /**
+     * Rolls the ring forward, dropping every slot that has left the window.
+     * If the whole window has gone by, everything is just cleared.
+     */
+    private void advanceTo(long slot)
+    {
+        if (slot <= currentSlot)
+        {
+            return;
+        }
+
+        long expired = Math.min(slot - currentSlot, slots.length);
+        for (long s = currentSlot + 1; s <= currentSlot + expired; ++s)
+        {
+            long[] old = slots[index(s)];
+            for (int i = 0; i < 128; ++i)
+            {
+                totals[i] -= old[i];
+                old[i] = 0;
+            }
+        }
+        currentSlot = slot;
+    }
+
+    private int index(long slot)
+    {
+        return (int) Math.floorMod(slot, (long) slots.length);
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs a pipeline through reads that fail, more times than it has
+ * buffers, then checks that a normal pass still counts everything.
+ */
+public class TestPipeline
+{
+    public static void main(String[] args) throws Exception
+    {
+        int buffers = 4;
+        int failures = 3 * buffers;
+        byte[] text = "the quick brown fox jumps over the lazy dog\n".getBytes(StandardCharsets.US_ASCII);
+
+        HistogramPipeline pipeline = new HistogramPipeline(buffers, 16, 2);
+        try
+        {
+            for (int i = 0; i < failures; ++i)
+            {
+                try
+                {
+                    pipeline.process(new FailingChannel(text, 3 * i));
+                    System.out.println("Error: read " + i + " should have failed");
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Read " + i + " failed as expected: " + e.getMessage());
+                }
+            }
+
+            System.out.println("Normal pass; this hangs if the failures lost buffers...");
+            HistogramPipeline.Report report = pipeline.process(new FailingChannel(text, -1));
+            long[] expected = new long[128];
+            for (byte b : text)
+            {
+                expected[b]++;
+            }
+            boolean ok = report.getBytes() == text.length;
+            for (int c = 0; c < expected.length; ++c)
+            {
+                ok &= report.getHistogram().getCount(c) == expected[c];
+            }
+            System.out.println(ok ? "OK: " + report : "Error: wrong counts " + report.getHistogram());
+        }
+        finally
+        {
+            pipeline.close();
+        }
+    }
+
+    // Hands out the text a few bytes at a time, then fails once it has
+    // given failAfter bytes (never, if negative).
+    private static class FailingChannel implements ReadableByteChannel
+    {
+        private final byte[] text;
+        private final int failAfter;
+        private int position;
+
+        FailingChannel(byte[] text, int failAfter)
+        {
+            this.text = text;
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException
+        {
+            if (failAfter >= 0 && position >= failAfter)
+            {
+                throw new IOException("Failing after " + position + " bytes");
+            }
+            if (position == text.length)
+            {
+                return -1;
+            }
+            int n = Math.min(Math.min(dst.remaining(), 5), text.length - position);
+            dst.put(text, position, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A histogram of every Unicode code point, not just ASCII.
+ * <p>
+ * Surrogate pairs are put back together and counted once as the code
+ * point they stand for. Code points up to 255 (ASCII and Latin-1) live
+ * in a plain array, so the common case is the same single increment
+ * Histogram does. Everything else goes into an IntLongMap, which stays
+ * small because most text only uses a handful of other code points.
+ */
+public class UnicodeHistogram
+{
+    /**
+     * Code points below this are counted in the dense array.
+     */
+    static final int DENSE_LIMIT = 256;
+
+    private long[] dense = new long[DENSE_LIMIT];
+    private IntLongMap sparse = new IntLongMap();
+
+    // Bumped whenever the counts change, so index() knows when to rebuild.
+    private int modCount;
+    private HistogramIndex index;
+    private int indexModCount;
+
+    /**
+     * Optional engine; when set, big inputs are split across its pool.
+     */
+    private HistogramEngine engine;
+
+    // Below this many chars we don't bother with the pool at all.
+    private int doNotMultiThreadIfLessThan = HistogramEngine.DEFAULT_SPLIT_THRESHOLD;
+
+    /**
+     * Creates a histogram that counts on the calling thread.
+     */
+    public UnicodeHistogram()
+    {
+    }
+
+    /**
+     * Creates a histogram that splits big inputs across an engine's pool.
+     * The engine is not closed by this histogram.
+     *
+     * @param engine
+     */
+    public UnicodeHistogram(HistogramEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Processes an array of text and records code point counts,
+     * replacing whatever was counted before.
+     *
+     * @param text
+     */
+    public void process(char[] text)
+    {
+        reset();
+        if (engine == null || text.length < doNotMultiThreadIfLessThan)
+        {
+            count(text, 0, text.length, dense, sparse);
+            return;
+        }
+
+        UnicodeHistogram partial = engine.getPool().invoke(new Task(text, 0, text.length));
+        this.dense = partial.dense;
+        this.sparse = partial.sparse;
+    }
+
+    /**
+     * How many times a code point was seen.
+     *
+     * @param codePoint
+     * @return
+     */
+    public long getCount(int codePoint)
+    {
+        if (codePoint >= 0 && codePoint < DENSE_LIMIT)
+        {
+            return dense[codePoint];
+        }
+        return sparse.get(codePoint);
+    }
+
+    /**
+     * Every code point seen at least once, in ascending order.
+     */
+    public int[] codePoints()
+    {
+        int[] rare = sparse.keys();
+        int denseUsed = 0;
+        for (long c : dense)
+        {
+            if (c != 0)
+            {
+                denseUsed++;
+            }
+        }
+
+        int[] out = new int[denseUsed + rare.length];
+        int n = 0;
+        for (int cp = 0; cp < DENSE_LIMIT; ++cp)
+        {
+            if (dense[cp] != 0)
+            {
+                out[n++] = cp;
+            }
+        }
+        System.arraycopy(rare, 0, out, n, rare.length);
+        Arrays.sort(out, n, out.length);
+        return out;
+    }
+
+    /**
+     * Prefix sums and top-K over every code point seen, for range, rank,
+     * quantile and top-K questions. Built on first use and reused until
+     * the histogram changes.
+     *
+     * @return
+     */
+    public HistogramIndex index()
+    {
+        if (index == null || indexModCount != modCount)
+        {
+            int[] codes = codePoints();
+            long[] counts = new long[codes.length];
+            for (int i = 0; i < codes.length; ++i)
+            {
+                counts[i] = getCount(codes[i]);
+            }
+            index = new HistogramIndex(codes, counts);
+            indexModCount = modCount;
+        }
+        return index;
+    }
+
+    /**
+     * Adds another histogram's counts into this one.
+     *
+     * @param other
+     */
+    public void merge(UnicodeHistogram other)
+    {
+        for (int i = 0; i < DENSE_LIMIT; ++i)
+        {
+            dense[i] += other.dense[i];
+        }
+        sparse.addAll(other.sparse);
+        modCount++;
+    }
+
+    /**
+     * Displays every code point that was seen with its count.
+     */
+    public void display()
+    {
+        for (int cp : codePoints())
+        {
+            System.out.println(String.format("U+%04X %d", cp, getCount(cp)));
+        }
+    }
+
+    /**
+     * Resets histogram to all zeros.
+     */
+    public void reset()
+    {
+        Arrays.fill(dense, 0);
+        sparse.clear();
+        modCount++;
+    }
+
+    /**
+     * The counting loop. Latin-1 goes straight into the array; anything
+     * else is put back together from surrogates if need be and goes to the map.
+     * A lone surrogate is counted as itself, the way Character.codePointAt does.
+     */
+    static void count(char[] text, int from, int to, long[] dense, IntLongMap sparse)
+    {
+        for (int i = from; i < to; ++i)
+        {
+            char ch = text[i];
+            if (ch < DENSE_LIMIT)
+            {
+                dense[ch]++;
+            }
+            else if (Character.isHighSurrogate(ch) && i + 1 < to && Character.isLowSurrogate(text[i + 1]))
+            {
+                sparse.add(Character.toCodePoint(ch, text[++i]), 1);
+            }
+            else
+            {
+                sparse.add(ch, 1);
+            }
+        }
+    }
+
+    /**
+     * Picks a split point near middle that doesn't cut a surrogate pair in two.
+     */
+    static int splitPoint(char[] text, int middle)
+    {
+        if (Character.isLowSurrogate(text[middle]) && Character.isHighSurrogate(text[middle - 1]))
+        {
+            return middle + 1;
+        }
+        return middle;
+    }
+
+    // Same halving as HistogramEngine, but each piece gets its own map.
+    private class Task extends RecursiveTask<UnicodeHistogram>
+    {
+        private final char[] text;
+        private final int from;
+        private final int to;
+
+        Task(char[] text, int from, int to)
+        {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected UnicodeHistogram compute()
+        {
+            if (to - from <= doNotMultiThreadIfLessThan)
+            {
+                UnicodeHistogram output = new UnicodeHistogram();
+                count(text, from, to, output.dense, output.sparse);
+                return output;
+            }
+
+            int middle = splitPoint(text, (from + to) >>> 1);
+            Task left = new Task(text, from, middle);
+            left.fork();
+            UnicodeHistogram output = new Task(text, middle, to).compute();
+            output.merge(left.join());
+            return output;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Counts UTF-8 encoded text straight from the bytes, giving the same
+ * 128 buckets Histogram would after decoding to chars, without ever
+ * making the chars.
+ * <p>
+ * ASCII runs are handled 8 bytes at a time: one getLong(), and if none of
+ * the 8 high bits are set, all 8 bytes are ASCII and each one is a bucket
+ * index as it stands. Anything else is classified from its lead byte:
+ * 2 and 3 byte sequences decode to one char and 4 byte sequences to a
+ * surrogate pair (two chars), all of which land in bucket 127.
+ * <p>
+ * Malformed input is counted the way new String(bytes, UTF_8) replaces
+ * it: one U+FFFD (bucket 127) for each bad byte or for the valid start of
+ * a cut off sequence.
+ */
+class Utf8Counter
+{
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private Utf8Counter()
+    {
+    }
+
+    /**
+     * Counts the UTF-8 text in bytes[from..to) into output. Absolute gets
+     * only, so the buffer (heap or direct) can be shared between threads.
+     */
+    static void count(ByteBuffer bytes, int from, int to, int[] output)
+    {
+        int i = from;
+        int wordEnd = to - 7;
+        while (i < to)
+        {
+            if (i < wordEnd)
+            {
+                long word = bytes.getLong(i);
+                if ((word & HIGH_BITS) == 0)
+                {
+                    // Byte order doesn't matter, every byte gets counted either way.
+                    output[(int) word & 0x7F]++;
+                    output[(int) (word >>> 8) & 0x7F]++;
+                    output[(int) (word >>> 16) & 0x7F]++;
+                    output[(int) (word >>> 24) & 0x7F]++;
+                    output[(int) (word >>> 32) & 0x7F]++;
+                    output[(int) (word >>> 40) & 0x7F]++;
+                    output[(int) (word >>> 48) & 0x7F]++;
+                    output[(int) (word >>> 56) & 0x7F]++;
+                    i += 8;
+                    continue;
+                }
+            }
+
+            int b = bytes.get(i) & 0xFF;
+            if (b < 0x80)
+            {
+                output[b]++;
+                i++;
+            }
+            else
+            {
+                i = countSequence(bytes, i, to, b, output);
+            }
+        }
+    }
+
+    /**
+     * Classifies the multi-byte sequence starting at i with lead byte b,
+     * adds its chars to bucket 127, and returns where the next one starts.
+     */
+    private static int countSequence(ByteBuffer bytes, int i, int to, int b, int[] output)
+    {
+        int continuationBytes;
+        int low = 0x80;
+        int high = 0xBF;
+        if (b >= 0xC2 && b <= 0xDF)
+        {
+            continuationBytes = 1;
+        }
+        else if (b >= 0xE0 && b <= 0xEF)
+        {
+            continuationBytes = 2;
+            // No overlong forms. (Encoded surrogates, ED A0..BF, decode to a
+            // single U+FFFD, which is bucket 127 all the same.)
+            if (b == 0xE0)
+            {
+                low = 0xA0;
+            }
+        }
+        else if (b >= 0xF0 && b <= 0xF4)
+        {
+            continuationBytes = 3;
+            // no overlong forms, nothing past U+10FFFF
+            if (b == 0xF0)
+            {
+                low = 0x90;
+            }
+            else if (b == 0xF4)
+            {
+                high = 0x8F;
+            }
+        }
+        else
+        {
+            // stray continuation byte, C0/C1, or F5 and up
+            output[127]++;
+            return i + 1;
+        }
+
+        int j = i + 1;
+        for (int k = 0; k < continuationBytes; ++k, ++j)
+        {
+            if (j >= to)
+            {
+                output[127]++;
+                return j;
+            }
+            int c = bytes.get(j) & 0xFF;
+            if (c < low || c > high)
+            {
+                // What we have so far is one bad char; c starts over.
+                output[127]++;
+                return j;
+            }
+            low = 0x80;
+            high = 0xBF;
+        }
+
+        output[127] += continuationBytes == 3 ? 2 : 1;
+        return j;
+    }
+
+    /**
+     * Moves a split point forward to a byte that starts a new sequence, so
+     * the bytes before it and after it can be counted separately and still
+     * add up to the same thing. Continuation bytes can never be the first
+     * byte of a sequence; anything else always is.
+     */
+    static int splitPoint(ByteBuffer bytes, int middle, int to)
+    {
+        while (middle < to && (bytes.get(middle) & 0xC0) == 0x80)
+        {
+            middle++;
+        }
+        return middle;
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A compact binary alternative to serialized Messages.
+ * <p>
+ * A client that wants it sends MAGIC as the very first four bytes
+ * on the connection. A Java serialization stream always starts
+ * with 0xACED, and a MessageFrames length is never more than
+ * MAX_FRAME, so the server can tell all three apart from the first
+ * four bytes and old clients keep working unchanged.
+ * <p>
+ * After that, every message is one frame:
+ * <pre>
+ *   int  length of the rest of the frame
+ *   byte opcode
+ *   int  id
+ *   int  correlationId
+ *   int  operand
+ *   for ERROR only: the error text, UTF-8, to the end of the frame
+ *   for batches only: operand more ints, operand being the count
+ * </pre>
+ * All big-endian. Encoding writes straight into the caller's
+ * buffer and decoding fills the caller's Frame, so neither one
+ * allocates anything (apart from the text of an error, or a
+ * batch bigger than any before it).
+ */
+public class BinaryProtocol
+{
+  /** "CALC" with the low byte as the version. */
+  public static final int MAGIC = 0xCA1C0001;
+
+  /** Request: operand is the number to increment. */
+  public static final byte INCREMENT = 1;
+  /** Reply: operand is the answer. */
+  public static final byte RESULT = 2;
+  /** Reply: the request failed, see the text. */
+  public static final byte ERROR = 3;
+  /** Request: increment each of the values. */
+  public static final byte INCREMENT_ALL = 4;
+  /** Reply: the answers, in the same order as the values. */
+  public static final byte RESULT_ALL = 5;
+
+  /** opcode + id + correlationId + operand */
+  static final int BODY_SIZE = 1 + 4 + 4 + 4;
+  /** A whole frame without any text. */
+  public static final int FRAME_SIZE = 4 + BODY_SIZE;
+
+  public static final int MAX_FRAME = MessageFrames.MAX_FRAME;
+  /** The most values one batch frame can carry. */
+  public static final int MAX_BATCH = (MAX_FRAME - BODY_SIZE) / 4;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private BinaryProtocol()
+  {
+  }
+
+  /**
+   * One decoded frame. Meant to be reused: decode() overwrites
+   * every field.
+   */
+  public static class Frame
+  {
+    public byte opcode;
+    public int id;
+    public int correlationId;
+    public int operand;
+    /** Only for ERROR frames, otherwise null. */
+    public String error;
+    /**
+     * Only for batches: the first operand entries are the values.
+     * Kept between frames and only replaced when a bigger batch
+     * comes along, so it may be longer than that.
+     */
+    public int[] values;
+
+    /**
+     * A frame of its own with the same contents, for handing to
+     * another thread while this one gets reused.
+     */
+    public Frame copy()
+    {
+      Frame f = new Frame();
+      f.opcode = opcode;
+      f.id = id;
+      f.correlationId = correlationId;
+      f.operand = operand;
+      f.error = error;
+      if (isBatch(opcode))
+      {
+        f.values = new int[operand];
+        System.arraycopy(values, 0, f.values, 0, operand);
+      }
+      return f;
+    }
+  }
+
+  static boolean isBatch(byte opcode)
+  {
+    return opcode == INCREMENT_ALL || opcode == RESULT_ALL;
+  }
+
+  /**
+   * Writes a frame at the buffer's position.
+   * @throws java.nio.BufferOverflowException
+   *   if there isn't room for FRAME_SIZE bytes
+   */
+  public static void encode(ByteBuffer out, byte opcode, int id, int correlationId, int operand)
+  {
+    out.putInt(BODY_SIZE);
+    out.put(opcode);
+    out.putInt(id);
+    out.putInt(correlationId);
+    out.putInt(operand);
+  }
+
+  /**
+   * Writes a frame at the buffer's position, text and all if
+   * it's an ERROR. Needs size(f) bytes of room.
+   */
+  public static void encode(ByteBuffer out, Frame f)
+  {
+    if (f.opcode == ERROR)
+    {
+      encodeError(out, f.id, f.correlationId, f.error);
+    }
+    else if (isBatch(f.opcode))
+    {
+      encodeBatch(out, f.opcode, f.id, f.correlationId, f.values, f.operand);
+    }
+    else
+    {
+      encode(out, f.opcode, f.id, f.correlationId, f.operand);
+    }
+  }
+
+  /**
+   * How many bytes encode(out, f) will take.
+   */
+  public static int size(Frame f)
+  {
+    if (f.opcode == ERROR)
+    {
+      return errorSize(f.error);
+    }
+    return isBatch(f.opcode) ? batchSize(f.operand) : FRAME_SIZE;
+  }
+
+  /**
+   * Writes an INCREMENT_ALL or RESULT_ALL frame carrying the first
+   * count values. Needs batchSize(count) bytes of room.
+   */
+  public static void encodeBatch(ByteBuffer out, byte opcode, int id, int correlationId, int[] values, int count)
+  {
+    out.putInt(BODY_SIZE + 4 * count);
+    out.put(opcode);
+    out.putInt(id);
+    out.putInt(correlationId);
+    out.putInt(count);
+    for (int i = 0; i < count; i++)
+    {
+      out.putInt(values[i]);
+    }
+  }
+
+  /**
+   * How many bytes a batch frame of count values takes.
+   */
+  public static int batchSize(int count)
+  {
+    return FRAME_SIZE + 4 * count;
+  }
+
+  /**
+   * Writes an ERROR frame at the buffer's position.
+   */
+  public static void encodeError(ByteBuffer out, int id, int correlationId, String error)
+  {
+    byte[] text = error.getBytes(UTF8);
+    out.putInt(BODY_SIZE + text.length);
+    out.put(ERROR);
+    out.putInt(id);
+    out.putInt(correlationId);
+    out.putInt(0);
+    out.put(text);
+  }
+
+  /**
+   * How many bytes an ERROR frame with this text takes.
+   */
+  public static int errorSize(String error)
+  {
+    return FRAME_SIZE + error.getBytes(UTF8).length;
+  }
+
+  /**
+   * How big the frame at the buffer's position says it is, all in,
+   * or -1 if not even its length has arrived yet.
+   * @throws IOException
+   *   if the length can't be right
+   */
+  public static int frameSize(ByteBuffer in) throws IOException
+  {
+    if (in.remaining() < 4)
+    {
+      return -1;
+    }
+    int length = in.getInt(in.position());
+    if (length < BODY_SIZE || length > MAX_FRAME)
+    {
+      throw new IOException("Bad frame length " + length);
+    }
+    return 4 + length;
+  }
+
+  /**
+   * Decodes the frame at the buffer's position into f, if all of
+   * it has arrived, and moves past it.
+   * @return
+   *   false (and nothing consumed) if the frame isn't complete yet
+   */
+  public static boolean decode(ByteBuffer in, Frame f) throws IOException
+  {
+    int size = frameSize(in);
+    if (size < 0 || in.remaining() < size)
+    {
+      return false;
+    }
+    int start = in.position();
+    in.position(start + 4);
+    f.opcode = in.get();
+    f.id = in.getInt();
+    f.correlationId = in.getInt();
+    f.operand = in.getInt();
+    f.error = null;
+    int textLength = size - FRAME_SIZE;
+    if (f.opcode == ERROR)
+    {
+      byte[] text = new byte[textLength];
+      in.get(text);
+      f.error = new String(text, UTF8);
+    }
+    else if (isBatch(f.opcode))
+    {
+      int count = f.operand;
+      if (count < 0 || count > textLength / 4)
+      {
+        throw new IOException("Bad batch count " + count);
+      }
+      if (f.values == null || f.values.length < count)
+      {
+        f.values = new int[count];
+      }
+      for (int i = 0; i < count; i++)
+      {
+        f.values[i] = in.getInt();
+      }
+    }
+    // Skip anything this version doesn't know about.
+    in.position(start + size);
+    return true;
+  }
+
+  /**
+   * Reads frames off a blocking stream through one reusable buffer.
+   */
+  public static class StreamReader
+  {
+    private final InputStream is;
+    // read mode: position..limit is what has arrived but not been decoded
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+    public StreamReader(InputStream is)
+    {
+      this.is = is;
+      buffer.flip();
+    }
+
+    /**
+     * Blocks until a whole frame is in, and decodes it into f.
+     * @return
+     *   false at end of stream
+     */
+    public boolean next(Frame f) throws IOException
+    {
+      while (!decode(buffer, f))
+      {
+        int size = frameSize(buffer);
+        buffer.compact();
+        if (size > buffer.capacity())
+        {
+          // Rare: a frame bigger than anything so far.
+          ByteBuffer bigger = ByteBuffer.allocate(size);
+          buffer.flip();
+          bigger.put(buffer);
+          buffer = bigger;
+        }
+        int n = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (n == -1)
+        {
+          return false;
+        }
+        buffer.position(buffer.position() + n);
+        buffer.flip();
+      }
+      return true;
+    }
+  }
+}
@@ -1,13 +1,20 @@
 import common.ICalculator;
 import common.SlowCalculator;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A simple example of a server that performs a simple
@@ -16,24 +23,83 @@ import java.util.concurrent.Executors;
  * writes out the successor of that integer.
  * <p>
  * Try this with FirstSwingExampleRemote
+ * <p>
+ * Run with "nio" as the argument for the non-blocking
+ * mode (see SelectorServer), which holds many more
+ * clients on a few threads. Clients then have to use
+ * framed messages, see CalculatorProxy.
+ * <p>
+ * Add "virtual" to run connections and requests on
+ * virtual threads (Java 21+), one per request, so a
+ * client isn't limited to two requests in flight and
+ * sleeping calculations don't tie up platform threads.
+ * <p>
+ * Either mode also speaks BinaryProtocol to clients that
+ * open with its magic number; everyone else gets what
+ * they always got.
+ * <p>
+ * A batch ("incrementAll 1 2 3", or a BinaryProtocol
+ * INCREMENT_ALL frame) is spread over the connection's
+ * workers and answered with a single reply.
  */
 public class CalculationServer
 {
+  // Most workers one batch will keep busy, when the workers
+  // are a thread per task and so have no limit of their own.
+  private static final int BATCH_PARALLELISM = 64;
+
   private static int nextId;    
   private ICalculator calc;
+  private boolean virtualThreads;
  
   /**
    * @param args
    */
   public static void main(String[] args)
   {
-    new CalculationServer().runServer(2222);
+    CalculationServer server = new CalculationServer();
+    boolean nio = false;
+    for (String arg : args)
+    {
+      if (arg.equals("nio"))
+      {
+        nio = true;
+      }
+      else if (arg.equals("virtual"))
+      {
+        server.setVirtualThreads(true);
+      }
+    }
+    if (nio)
+    {
+      server.runNioServer(2222);
+    }
+    else
+    {
+      server.runServer(2222);
+    }
   }
 
   public CalculationServer()
   {
     calc = new SlowCalculator();
   }
+
+  /**
+   * Whether to use a virtual thread per connection and per
+   * request instead of a thread per connection plus a pool
+   * of two. Falls back to platform threads, one per request,
+   * on JVMs without virtual threads (see Threads).
+   * @param virtualThreads
+   */
+  public void setVirtualThreads(boolean virtualThreads)
+  {
+    if (virtualThreads && !Threads.virtualThreadsAvailable())
+    {
+      System.out.println("No virtual threads on this JVM, using platform threads");
+    }
+    this.virtualThreads = virtualThreads;
+  }
   
   private static int getNextId()
   {
@@ -63,7 +129,7 @@ public class CalculationServer
         
         // blocks here until a client attempts to connect
         Socket s = ss.accept();
-        new Thread(new MessageReader(s)).start();
+        Threads.start(new MessageReader(s), virtualThreads);
       }      
     }
     catch (IOException e)
@@ -88,6 +154,271 @@ public class CalculationServer
        
   }
   
+  /**
+   * Non-blocking server loop: a few selector threads for
+   * all the connections, and a pool for the calculations.
+   * Clients send framed messages (MessageFrames), or, if they
+   * open the connection with BinaryProtocol.MAGIC, binary frames
+   * (BinaryProtocol).
+   * @param port
+   *   the port number on which to listen
+   */
+  public void runNioServer(int port)
+  {
+    int selectors = Math.min(4, Runtime.getRuntime().availableProcessors());
+    // SlowCalculator mostly sleeps, so this is about how many
+    // requests can be in progress, not about cores.
+    runNioServer(port, selectors, 64);
+  }
+
+  /**
+   * @param port
+   *   the port number on which to listen
+   * @param selectors
+   *   threads watching connections
+   * @param computeThreads
+   *   threads doing calculations
+   */
+  public void runNioServer(int port, int selectors, int computeThreads)
+  {
+    try
+    {
+      // With virtual threads every request gets its own,
+      // and computeThreads doesn't matter.
+      ExecutorService compute = virtualThreads
+          ? Threads.perTaskExecutor()
+          : Executors.newFixedThreadPool(computeThreads);
+      new SelectorServer(this, selectors, compute).run(port);
+    }
+    catch (IOException e)
+    {
+      System.out.println("I/O error: " + e);
+    }
+  }
+
+  /**
+   * Works out the reply to a request. Used by both
+   * server modes; safe to call from any thread.
+   * @param workers
+   *   where a batch gets spread out
+   */
+  Message respond(Message m, Executor workers)
+  {
+    int id = m.getId();
+    String payload = m.getPayload();
+    String[] args = payload.split("\\s+");
+    String result;
+    if (args[0].equals("increment"))
+    {
+      result = processIncrementRequest(args);
+    }
+    else if (args[0].equals("incrementAll"))
+    {
+      result = processIncrementAllRequest(args, workers);
+    }
+    else
+    {
+      result = "Undefined operation";
+    }
+
+    Message reply = new Message();
+    reply.setId(getNextId());
+    reply.setCorrelationId(id);
+    reply.setPayload(result);
+    return reply;
+  }
+
+  /**
+   * Works out the reply to a BinaryProtocol request. Used by
+   * both server modes; safe to call from any thread.
+   * @param request
+   *   not shared with anyone else (see Frame.copy())
+   * @param workers
+   *   where a batch gets spread out
+   */
+  BinaryProtocol.Frame respond(BinaryProtocol.Frame request, Executor workers)
+  {
+    BinaryProtocol.Frame reply = new BinaryProtocol.Frame();
+    reply.id = getNextId();
+    reply.correlationId = request.id;
+    try
+    {
+      if (request.opcode == BinaryProtocol.INCREMENT)
+      {
+        reply.operand = calc.increment(request.operand);
+        reply.opcode = BinaryProtocol.RESULT;
+      }
+      else if (request.opcode == BinaryProtocol.INCREMENT_ALL)
+      {
+        reply.values = incrementAll(request.values, request.operand, workers);
+        reply.operand = request.operand;
+        reply.opcode = BinaryProtocol.RESULT_ALL;
+      }
+      else
+      {
+        reply.opcode = BinaryProtocol.ERROR;
+        reply.error = "Undefined operation";
+      }
+    }
+    catch (Exception e)
+    {
+      reply.opcode = BinaryProtocol.ERROR;
+      reply.error = e.toString();
+    }
+    return reply;
+  }
+
+  private String processIncrementAllRequest(String[] args, Executor workers)
+  {
+    try
+    {
+      int[] values = new int[args.length - 1];
+      for (int i = 0; i < values.length; i++)
+      {
+        values[i] = Integer.parseInt(args[i + 1]);
+      }
+      int[] answers = incrementAll(values, values.length, workers);
+      StringBuilder sb = new StringBuilder(answers.length * 8);
+      for (int i = 0; i < answers.length; i++)
+      {
+        if (i > 0)
+        {
+          sb.append(' ');
+        }
+        sb.append(answers[i]);
+      }
+      return sb.toString();
+    }
+    catch (Exception e)
+    {
+      return e.toString();
+    }
+  }
+
+  /**
+   * Increments the first count values, spread over the
+   * workers, and waits for all of them. The calling thread
+   * does its share, and helpers only take values nobody has
+   * started on, so this finishes even if every worker is
+   * busy (or is the calling thread).
+   * @return
+   *   the answers, in order
+   * @throws Exception
+   *   the first failure, if any value failed
+   */
+  int[] incrementAll(int[] values, int count, Executor workers) throws Exception
+  {
+    Batch batch = new Batch(values, count);
+    int helpers = Math.min(count, parallelism(workers)) - 1;
+    for (int i = 0; i < helpers; i++)
+    {
+      workers.execute(batch);
+    }
+    batch.run();
+    return batch.await();
+  }
+
+  /**
+   * How many threads the workers can really run at once,
+   * counting the one asking. A pool gets no more helpers than
+   * it has threads, so spare ones don't sit in its queue in
+   * front of other requests.
+   */
+  private static int parallelism(Executor workers)
+  {
+    if (workers instanceof ThreadPoolExecutor)
+    {
+      return Math.min(BATCH_PARALLELISM, ((ThreadPoolExecutor) workers).getMaximumPoolSize());
+    }
+    return BATCH_PARALLELISM;
+  }
+
+  /**
+   * One batch in progress. Every thread running it takes the
+   * next value nobody has claimed until there are none left.
+   */
+  private class Batch implements Runnable
+  {
+    private final int[] values;
+    private final int count;
+    private final int[] answers;
+    private final AtomicInteger next = new AtomicInteger();
+    private int finished;
+    private Exception failure;
+
+    Batch(int[] values, int count)
+    {
+      this.values = values;
+      this.count = count;
+      this.answers = new int[count];
+    }
+
+    public void run()
+    {
+      int i;
+      while ((i = next.getAndIncrement()) < count)
+      {
+        Exception e = null;
+        try
+        {
+          if (!failed())
+          {
+            answers[i] = calc.increment(values[i]);
+          }
+        }
+        catch (Exception ex)
+        {
+          e = ex;
+        }
+        finished(e);
+      }
+    }
+
+    private synchronized boolean failed()
+    {
+      return failure != null;
+    }
+
+    private synchronized void finished(Exception e)
+    {
+      if (e != null && failure == null)
+      {
+        failure = e;
+      }
+      if (++finished == count)
+      {
+        notifyAll();
+      }
+    }
+
+    synchronized int[] await() throws Exception
+    {
+      while (finished < count)
+      {
+        wait();
+      }
+      if (failure != null)
+      {
+        throw failure;
+      }
+      return answers;
+    }
+  }
+
+  private String processIncrementRequest(String[] args)
+  {
+    try
+    {
+      int value = Integer.parseInt(args[1]);
+      int answer = calc.increment(value);
+      return "" + answer;
+    }
+    catch (Exception e)
+    {
+      return e.toString();
+    }
+  }
+
   /**
    * Task will set up a dedicated connection to client
    * for two-way messaging.
@@ -97,9 +428,17 @@ public class CalculationServer
     private Socket s;
     private ObjectInputStream ois;
     private ObjectOutputStream oos;
+    // Replies go through one of these, on a writer thread of
+    // their own, instead of each handler writing (and flushing)
+    // for itself.
+    private OutboundQueue<Message> messages;
+    private OutboundQueue<BinaryProtocol.Frame> frames;
     
     // our own thread pool for handling messages
-    private ExecutorService pool = Executors.newFixedThreadPool(2);
+    // (or a virtual thread per message)
+    private ExecutorService pool = virtualThreads
+        ? Threads.perTaskExecutor()
+        : Executors.newFixedThreadPool(2);
     
     public MessageReader(Socket s)
     {
@@ -112,8 +451,33 @@ public class CalculationServer
     {
       try
       {
-        ois = new ObjectInputStream(s.getInputStream());
-        oos = new ObjectOutputStream(s.getOutputStream());
+        // Peek at the first four bytes to see which protocol
+        // the client speaks; a serialized stream starts 0xACED.
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        in.mark(4);
+        if (new DataInputStream(in).readInt() == BinaryProtocol.MAGIC)
+        {
+          runBinary(in);
+          return;
+        }
+        in.reset();
+
+        ois = new ObjectInputStream(in);
+        oos = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream(), OutboundQueue.BUFFER_SIZE));
+        oos.flush();
+        messages = new OutboundQueue<Message>()
+        {
+          protected void write(Message m) throws IOException
+          {
+            oos.writeObject(m);
+          }
+
+          protected void flush() throws IOException
+          {
+            oos.flush();
+          }
+        };
+        Threads.start(messages, virtualThreads);
         
         while (true)
         {
@@ -142,8 +506,16 @@ public class CalculationServer
       finally
       {
         // close the connection and shut down the
-        // thread pool
+        // thread pool and the writer
         pool.shutdown();
+        if (messages != null)
+        {
+          messages.close();
+        }
+        if (frames != null)
+        {
+          frames.close();
+        }
         
         try
         {
@@ -153,51 +525,36 @@ public class CalculationServer
       }
     }
 
-    private void handleRequest(Message m)
+    /**
+     * Reads binary requests until the client goes away.
+     */
+    private void runBinary(InputStream in) throws IOException
     {
-      int id = m.getId();
-      String payload = m.getPayload();
-      String[] args = payload.split("\\s+");
-      String result;
-      if (args[0].equals("increment"))
-      {
-        result = processIncrementRequest(args);
-      }
-      else
+      frames = new OutboundQueue.Frames(s.getOutputStream());
+      Threads.start(frames, virtualThreads);
+      BinaryProtocol.StreamReader reader = new BinaryProtocol.StreamReader(in);
+      BinaryProtocol.Frame request = new BinaryProtocol.Frame();
+      while (reader.next(request))
       {
-        result = "Undefined operation";
-      }
-
-      Message reply = new Message();
-      reply.setId(getNextId());
-      reply.setCorrelationId(id);
-      reply.setPayload(result);
-
-      try
-      {
-        synchronized(this)
+        final BinaryProtocol.Frame copy = request.copy();
+        pool.execute(new Runnable()
         {
-          oos.writeObject(reply);
-        }
-      }
-      catch (IOException e)
-      {
-        System.out.println("Exception in handler thread: " + e);
+          public void run()
+          {
+            handleBinary(copy);
+          }
+        });
       }
     }
-    
-    private String processIncrementRequest(String[] args)
+
+    private void handleBinary(BinaryProtocol.Frame request)
     {
-      try
-      {
-        int value = Integer.parseInt(args[1]);
-        int answer = calc.increment(value);
-        return "" + answer;
-      }
-      catch (Exception e)
-      {
-        return e.toString();
-      }
+      frames.send(respond(request, pool));
+    }
+
+    private void handleRequest(Message m)
+    {
+      messages.send(respond(m, pool));
     }
   }
   
@@ -1,12 +1,19 @@
+import async.BatchFuture;
 import async.IAsyncCalculator;
+import async.IBatchCallback;
 import async.ICallback;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,13 +24,49 @@ import java.util.concurrent.atomic.AtomicInteger;
  * messages.  The main weakness of this implementation
  * is that if the connection is ever lost, the client
  * will have to create another CalculatorProxy instance.
+ * <p>
+ * By default messages go over one long object stream, which
+ * is what CalculationServer.runServer() expects. Pass
+ * framed = true to talk to the non-blocking server
+ * (runNioServer()) instead, which wants each message in
+ * its own length-prefixed frame (MessageFrames).
+ * Protocol.BINARY skips serialization altogether and works
+ * with either server (see BinaryProtocol).
+ * <p>
+ * The reader can run on a virtual thread (Java 21+), so
+ * lots of proxies don't mean lots of platform threads.
  */
 public class CalculatorProxy implements IAsyncCalculator
 {
+  /**
+   * How messages go over the wire.
+   */
+  public enum Protocol
+  {
+    /** Serialized Messages on one object stream; runServer() only. */
+    OBJECT_STREAM,
+    /** Serialized Messages, one per frame; runNioServer() only. */
+    FRAMED,
+    /** BinaryProtocol frames; either server. */
+    BINARY
+  }
+
+  // Longest batch text that still fits a frame, leaving room
+  // for the rest of the serialized Message.
+  private static final int MAX_BATCH_TEXT = MessageFrames.MAX_FRAME - 1024;
+
   private static AtomicInteger nextId = new AtomicInteger(0);
   private ObjectOutputStream oos;
+  // used instead of oos in framed mode
+  private DataOutputStream framedOut;
+  // Requests go through one of these (frames in binary mode),
+  // so callers don't queue up on a lock or write one by one.
+  private OutboundQueue<Message> messages;
+  private OutboundQueue<BinaryProtocol.Frame> frames;
   
-  Map<Integer, ICallback> callbackCache = new HashMap<Integer, ICallback>();
+  Map<Integer, ICallback> callbackCache = new ConcurrentHashMap<Integer, ICallback>();
+  // batches waiting for their single reply
+  Map<Integer, IBatchCallback> batchCallbackCache = new ConcurrentHashMap<Integer, IBatchCallback>();
   
   /**
    * Constructs
@@ -32,11 +75,73 @@ public class CalculatorProxy implements IAsyncCalculator
    * @throws java.io.IOException
    */
   public CalculatorProxy(String host, int port) throws IOException
+  {
+    this(host, port, false);
+  }
+
+  /**
+   * Constructs
+   * @param host
+   * @param port
+   * @param framed
+   *   true for the non-blocking server
+   * @throws java.io.IOException
+   */
+  public CalculatorProxy(String host, int port, boolean framed) throws IOException
+  {
+    this(host, port, framed, false);
+  }
+
+  /**
+   * Constructs
+   * @param host
+   * @param port
+   * @param framed
+   *   true for the non-blocking server
+   * @param virtualThreads
+   *   read replies on a virtual thread, if the JVM has them
+   * @throws java.io.IOException
+   */
+  public CalculatorProxy(String host, int port, boolean framed, boolean virtualThreads) throws IOException
+  {
+    this(host, port, framed ? Protocol.FRAMED : Protocol.OBJECT_STREAM, virtualThreads);
+  }
+
+  /**
+   * Constructs
+   * @param host
+   * @param port
+   * @param protocol
+   *   must be one the server understands
+   * @param virtualThreads
+   *   read replies on a virtual thread, if the JVM has them
+   * @throws java.io.IOException
+   */
+  public CalculatorProxy(String host, int port, Protocol protocol, boolean virtualThreads) throws IOException
   {
     Socket s = new Socket(host, port);
-    oos = new ObjectOutputStream(s.getOutputStream());
-    MessageReader reader = new MessageReader(s.getInputStream());
-    new Thread(reader).start();
+    OutboundQueue<?> writer;
+    switch (protocol)
+    {
+      case FRAMED:
+        s.setTcpNoDelay(true);
+        framedOut = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), OutboundQueue.BUFFER_SIZE));
+        writer = messages = new MessageQueue();
+        break;
+      case BINARY:
+        s.setTcpNoDelay(true);
+        OutputStream out = s.getOutputStream();
+        out.write(ByteBuffer.allocate(4).putInt(BinaryProtocol.MAGIC).array());
+        writer = frames = new FrameQueue(out);
+        break;
+      default:
+        oos = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream(), OutboundQueue.BUFFER_SIZE));
+        oos.flush();
+        writer = messages = new MessageQueue();
+    }
+    Threads.start(writer, virtualThreads);
+    MessageReader reader = new MessageReader(s.getInputStream(), protocol, writer);
+    Threads.start(reader, virtualThreads);
   }
 
   private static int getNextId()
@@ -45,23 +150,172 @@ public class CalculatorProxy implements IAsyncCalculator
   }
   
   @Override
-  public synchronized void incrementAsync(int i, ICallback callback)
+  public void incrementAsync(int i, ICallback callback)
   {
     int id = getNextId();
+    // Register first; the reply can beat us back.
+    callbackCache.put(id, callback);
+    if (frames != null)
+    {
+      BinaryProtocol.Frame f = new BinaryProtocol.Frame();
+      f.opcode = BinaryProtocol.INCREMENT;
+      f.id = id;
+      f.operand = i;
+      frames.send(f);
+      return;
+    }
     String request = "increment " + i; 
     Message message = new Message();
     message.setId(id);
     message.setPayload(request);
-    try
+    messages.send(message);
+  }
+
+  @Override
+  public Future<int[]> incrementAll(int[] values)
+  {
+    BatchFuture f = new BatchFuture(values.length);
+    incrementAllAsync(values, f);
+    return f;
+  }
+
+  /**
+   * Sends the whole batch as one request. The server answers
+   * it with one reply, so the results all arrive together.
+   */
+  @Override
+  public void incrementAllAsync(int[] values, IBatchCallback callback)
+  {
+    if (values.length == 0)
+    {
+      callback.asyncComplete();
+      return;
+    }
+    if (frames != null && values.length > BinaryProtocol.MAX_BATCH)
+    {
+      callback.asyncException(new IllegalArgumentException("Batch of " + values.length
+          + " is over the limit of " + BinaryProtocol.MAX_BATCH));
+      return;
+    }
+    StringBuilder request = null;
+    if (frames == null)
+    {
+      request = new StringBuilder("incrementAll");
+      for (int v : values)
+      {
+        request.append(' ').append(v);
+      }
+      // Each answer is at most one char longer than its value,
+      // so this covers the reply too.
+      if (request.length() + values.length > MAX_BATCH_TEXT)
+      {
+        callback.asyncException(new IllegalArgumentException("Batch of " + values.length
+            + " is too big to send as text; split it or use Protocol.BINARY"));
+        return;
+      }
+    }
+    int id = getNextId();
+    batchCallbackCache.put(id, callback);
+    if (frames != null)
+    {
+      // Copied, since it's encoded later on the writer thread.
+      BinaryProtocol.Frame f = new BinaryProtocol.Frame();
+      f.opcode = BinaryProtocol.INCREMENT_ALL;
+      f.id = id;
+      f.operand = values.length;
+      f.values = values.clone();
+      frames.send(f);
+      return;
+    }
+    Message message = new Message();
+    message.setId(id);
+    message.setPayload(request.toString());
+    messages.send(message);
+  }
+
+  /**
+   * Tells whoever was waiting for the reply to a request
+   * that it isn't coming.
+   */
+  private void failed(int id, IOException e)
+  {
+    ICallback cb = callbackCache.remove(id);
+    if (cb != null)
+    {
+      cb.asyncException(e);
+    }
+    IBatchCallback batch = batchCallbackCache.remove(id);
+    if (batch != null)
+    {
+      batch.asyncException(e);
+    }
+  }
+
+  /**
+   * No more replies are coming; tells everyone still waiting.
+   */
+  private void failPending(IOException e)
+  {
+    for (Integer id : callbackCache.keySet())
+    {
+      failed(id, e);
+    }
+    for (Integer id : batchCallbackCache.keySet())
+    {
+      failed(id, e);
+    }
+  }
+
+  /**
+   * Writes serialized Messages, on the object stream or
+   * framed.
+   */
+  private class MessageQueue extends OutboundQueue<Message>
+  {
+    @Override
+    protected void write(Message message) throws IOException
+    {
+      if (framedOut != null)
+      {
+        MessageFrames.writeUnflushed(framedOut, message);
+      }
+      else
+      {
+        oos.writeObject(message);
+      }
+    }
+
+    @Override
+    protected void flush() throws IOException
     {
-      oos.writeObject(message);
-      callbackCache.put(id, callback);
+      if (framedOut != null)
+      {
+        framedOut.flush();
+      }
+      else
+      {
+        oos.flush();
+      }
     }
-    catch (Exception e)
+
+    @Override
+    protected void failed(Message message, IOException e)
     {
-      // Could be IOException or something else; 
-      // just tell the client about it
-      callback.asyncException(e);
+      CalculatorProxy.this.failed(message.getId(), e);
+    }
+  }
+
+  private class FrameQueue extends OutboundQueue.Frames
+  {
+    FrameQueue(OutputStream out)
+    {
+      super(out);
+    }
+
+    @Override
+    protected void failed(BinaryProtocol.Frame f, IOException e)
+    {
+      CalculatorProxy.this.failed(f.id, e);
     }
   }
 
@@ -81,15 +335,38 @@ public class CalculatorProxy implements IAsyncCalculator
   private class MessageReader implements Runnable
   {
     private InputStream is;
-    public MessageReader(InputStream is)
+    private Protocol protocol;
+    private OutboundQueue<?> writer;
+    public MessageReader(InputStream is, Protocol protocol, OutboundQueue<?> writer)
     {
       this.is = is;
+      this.protocol = protocol;
+      this.writer = writer;
     }
     
     public void run()
     {
+      IOException lost = null;
       try
       {
+        if (protocol == Protocol.BINARY)
+        {
+          BinaryProtocol.StreamReader in = new BinaryProtocol.StreamReader(is);
+          BinaryProtocol.Frame f = new BinaryProtocol.Frame();
+          while (in.next(f))
+          {
+            CalculatorProxy.this.dispatch(f);
+          }
+          return;
+        }
+        if (protocol == Protocol.FRAMED)
+        {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+          while (true)
+          {
+            CalculatorProxy.this.dispatch(MessageFrames.read(in));
+          }
+        }
         ObjectInputStream ois = new ObjectInputStream(is);
         while (true)
         {
@@ -105,10 +382,56 @@ public class CalculatorProxy implements IAsyncCalculator
       catch (IOException ioe)
       {
         // connection lost, just exit
+        lost = ioe;
+      }
+      finally
+      {
+        // Close the writer first, so anything sent from now on
+        // fails there, then fail everything still waiting on a reply.
+        writer.close();
+        failPending(lost != null ? lost : new IOException("Connection closed"));
       }
     }
   }
   
+  /**
+   * Handle an incoming binary reply.
+   * @param f
+   */
+  private void dispatch(BinaryProtocol.Frame f)
+  {
+    IBatchCallback batch = batchCallbackCache.remove(f.correlationId);
+    if (batch != null)
+    {
+      if (f.opcode == BinaryProtocol.RESULT_ALL)
+      {
+        for (int i = 0; i < f.operand; i++)
+        {
+          batch.asyncResult(i, f.values[i]);
+        }
+        batch.asyncComplete();
+      }
+      else
+      {
+        batch.asyncException(new Exception(f.error != null ? f.error : "Unexpected opcode " + f.opcode));
+      }
+      return;
+    }
+    ICallback cb = callbackCache.remove(f.correlationId);
+    if (cb == null)
+    {
+      return;
+    }
+    if (f.opcode == BinaryProtocol.RESULT)
+    {
+      cb.asyncResult(f.operand);
+    }
+    else
+    {
+      cb.asyncException(new Exception(f.error != null ? f.error : "Unexpected opcode " + f.opcode));
+    }
+  }
+
   /**
    * Handle an incoming message.
    * @param m
@@ -117,6 +440,13 @@ public class CalculatorProxy implements IAsyncCalculator
   {
     int correlationId = m.getCorrelationId();
     String result = m.getPayload();
+
+    IBatchCallback batch = batchCallbackCache.remove(correlationId);
+    if (batch != null)
+    {
+      dispatchBatch(result, batch);
+      return;
+    }
     
     // See if message is associated with a callback or a future
     ICallback cb = callbackCache.remove(correlationId);
@@ -142,6 +472,33 @@ public class CalculatorProxy implements IAsyncCalculator
 
 
 
+  /**
+   * Hands out the results of a batch, or if they aren't all
+   * numbers, treats the reply as the error.
+   */
+  private void dispatchBatch(String result, IBatchCallback batch)
+  {
+    String[] args = result.length() == 0 ? new String[0] : result.split("\\s+");
+    int[] answers = new int[args.length];
+    try
+    {
+      for (int i = 0; i < args.length; i++)
+      {
+        answers[i] = Integer.parseInt(args[i]);
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      batch.asyncException(new Exception(result));
+      return;
+    }
+    for (int i = 0; i < answers.length; i++)
+    {
+      batch.asyncResult(i, answers[i]);
+    }
+    batch.asyncComplete();
+  }
+
     private class ResponseCallBackHandler implements ICallback, Future<Integer> {
         private int valueReturned = Integer.MIN_VALUE;
         private Exception exceptionReturned;
@@ -194,7 +551,7 @@ public class CalculatorProxy implements IAsyncCalculator
                 }
                 else
                 {
-                    throw (ExecutionException) exceptionReturned;
+                    throw new ExecutionException(exceptionReturned);
                 }
             }
 
@@ -0,0 +1,110 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed framing for Messages.
+ * <p>
+ * The classic server reads one long ObjectInputStream per connection,
+ * which only works with a thread blocked on each socket. A non-blocking
+ * server gets whatever bytes have arrived and has to know where each
+ * message ends, so here every message is serialized on its own and sent
+ * as a 4 byte big-endian length followed by that many bytes.
+ */
+public class MessageFrames
+{
+  /**
+   * Frames bigger than this are refused, so a bad length can't make
+   * the server allocate gigabytes.
+   */
+  public static final int MAX_FRAME = 1024 * 1024;
+
+  private MessageFrames()
+  {
+  }
+
+  /**
+   * Serializes a message on its own, without the length.
+   */
+  public static byte[] toBytes(Message m) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    ObjectOutputStream oos = new ObjectOutputStream(bytes);
+    oos.writeObject(m);
+    oos.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads back a message written by toBytes().
+   */
+  public static Message fromBytes(byte[] b, int offset, int length) throws IOException
+  {
+    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(b, offset, length));
+    try
+    {
+      return (Message) ois.readObject();
+    }
+    catch (ClassNotFoundException e)
+    {
+      throw new IOException("Class not found: " + e.getMessage(), e);
+    }
+    finally
+    {
+      ois.close();
+    }
+  }
+
+  /**
+   * A whole frame, length and all, ready to write.
+   */
+  public static ByteBuffer frame(Message m) throws IOException
+  {
+    byte[] body = toBytes(m);
+    ByteBuffer frame = ByteBuffer.allocate(4 + body.length);
+    frame.putInt(body.length);
+    frame.put(body);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Writes one frame to a blocking stream and flushes it.
+   */
+  public static void write(DataOutputStream out, Message m) throws IOException
+  {
+    writeUnflushed(out, m);
+    out.flush();
+  }
+
+  /**
+   * Writes one frame without flushing, for batching several
+   * frames into one write.
+   */
+  public static void writeUnflushed(DataOutputStream out, Message m) throws IOException
+  {
+    byte[] body = toBytes(m);
+    out.writeInt(body.length);
+    out.write(body);
+  }
+
+  /**
+   * Reads one frame from a blocking stream.
+   */
+  public static Message read(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME)
+    {
+      throw new IOException("Bad frame length " + length);
+    }
+    byte[] body = new byte[length];
+    in.readFully(body);
+    return fromBytes(body, 0, length);
+  }
+}
@@ -0,0 +1,188 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Messages waiting to go out on one connection, and the one
+ * thread that writes them.
+ * <p>
+ * Any thread can send() without waiting on the socket or on
+ * the other senders. The writer takes whatever has piled up
+ * since its last turn, writes all of it into a buffered stream
+ * and flushes once, so when replies come in faster than the
+ * socket takes them, many of them go out per system call.
+ * <p>
+ * Subclasses say how one message is written and how to flush;
+ * run the queue itself on a thread of its own.
+ */
+abstract class OutboundQueue<T> implements Runnable
+{
+  /** How much a writer buffers before it has to flush anyway. */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  // Tells the writer to stop after what's ahead of it.
+  private static final Object END = new Object();
+
+  private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+  // Written since the last flush; writer thread only.
+  private final List<T> unflushed = new ArrayList<T>();
+  private volatile IOException failure;
+
+  /**
+   * Writes one message into the buffered stream, without
+   * flushing it.
+   */
+  protected abstract void write(T item) throws IOException;
+
+  /**
+   * Pushes everything written so far out to the socket.
+   */
+  protected abstract void flush() throws IOException;
+
+  /**
+   * Called, on whatever thread notices, for each message that
+   * couldn't be sent because writing failed. Does nothing
+   * unless overridden.
+   */
+  protected void failed(T item, IOException e)
+  {
+  }
+
+  /**
+   * Queues a message for the writer. Any thread.
+   */
+  void send(T item)
+  {
+    IOException e = failure;
+    if (e != null)
+    {
+      failed(item, e);
+      return;
+    }
+    queue.add(item);
+
+    // The writer may have given up and cleared the queue just
+    // before we added to it; if so, nobody else will report it.
+    e = failure;
+    if (e != null && queue.remove(item))
+    {
+      failed(item, e);
+    }
+  }
+
+  /**
+   * Has the writer stop once it has written everything sent
+   * before this. Anything sent after it fails.
+   */
+  void close()
+  {
+    queue.add(END);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void run()
+  {
+    try
+    {
+      while (true)
+      {
+        Object next = queue.take();
+        while (next != null)
+        {
+          if (next == END)
+          {
+            flush();
+            unflushed.clear();
+            giveUp(new IOException("Connection closed"));
+            return;
+          }
+          T item = (T) next;
+          unflushed.add(item);
+          write(item);
+          next = queue.poll();
+        }
+        flush();
+        unflushed.clear();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (IOException e)
+    {
+      System.out.println("Exception in writer thread: " + e);
+      giveUp(e);
+    }
+    catch (RuntimeException e)
+    {
+      // Say, a message that can't be encoded. The writer is gone
+      // either way, so nothing may be left waiting on it.
+      System.out.println("Exception in writer thread: " + e);
+      giveUp(new IOException("Writer failed", e));
+    }
+  }
+
+  // Fails everything not yet written, and anything sent later.
+  @SuppressWarnings("unchecked")
+  private void giveUp(IOException e)
+  {
+    failure = e;
+    for (T item : unflushed)
+    {
+      failed(item, e);
+    }
+    unflushed.clear();
+    Object next;
+    while ((next = queue.poll()) != null)
+    {
+      if (next != END)
+      {
+        failed((T) next, e);
+      }
+    }
+  }
+
+  /**
+   * BinaryProtocol frames, encoded one after another through
+   * a single reusable buffer.
+   */
+  static class Frames extends OutboundQueue<BinaryProtocol.Frame>
+  {
+    private final OutputStream out;
+    private ByteBuffer encoded = ByteBuffer.allocate(256);
+
+    /**
+     * @param out
+     *   the socket's stream; buffering is added here
+     */
+    Frames(OutputStream out)
+    {
+      this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    @Override
+    protected void write(BinaryProtocol.Frame f) throws IOException
+    {
+      int size = BinaryProtocol.size(f);
+      if (size > encoded.capacity())
+      {
+        encoded = ByteBuffer.allocate(size);
+      }
+      encoded.clear();
+      BinaryProtocol.encode(encoded, f);
+      out.write(encoded.array(), 0, encoded.position());
+    }
+
+    @Override
+    protected void flush() throws IOException
+    {
+      out.flush();
+    }
+  }
+}
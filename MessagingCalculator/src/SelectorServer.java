@@ -0,0 +1,532 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non-blocking front end for a CalculationServer.
+ * <p>
+ * Instead of a thread per client, a handful of event loops each watch
+ * many connections with one Selector. A loop only ever reads what has
+ * arrived and writes what the socket will take, so an idle or slow
+ * client costs a couple of small buffers, not a thread. Complete frames
+ * (see MessageFrames) are handed to a compute pool, which does the
+ * actual (slow) work and queues the reply back on the connection; the
+ * loop writes it out when the socket is ready. Frames queued by the
+ * time it gets to them go out together in one gathering write.
+ * <p>
+ * Accepting is done on the thread that calls run(), and new connections
+ * are dealt out to the loops in turn.
+ * <p>
+ * A connection that opens with BinaryProtocol.MAGIC gets binary frames
+ * instead. Those are decoded into one reused Frame, and replies are
+ * encoded into one reused buffer per connection, so replies that come
+ * in between two flushes go out in a single write.
+ */
+class SelectorServer
+{
+  private final CalculationServer server;
+  private final EventLoop[] loops;
+  private final ExecutorService compute;
+
+  // How long to wait after a failed accept before the next one.
+  private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+  /**
+   * @param server
+   *   does the work for each request
+   * @param loopCount
+   *   selector threads
+   * @param compute
+   *   runs the requests; shut down when the server stops
+   */
+  SelectorServer(CalculationServer server, int loopCount, ExecutorService compute)
+  {
+    this.server = server;
+    this.loops = new EventLoop[loopCount];
+    this.compute = compute;
+  }
+
+  /**
+   * Listens on the port and serves until the listening socket
+   * is closed. A failed accept or a bad connection is logged
+   * and skipped.
+   */
+  void run(int port) throws IOException
+  {
+    ServerSocketChannel ssc = ServerSocketChannel.open();
+    try
+    {
+      ssc.socket().setReuseAddress(true);
+      // A big backlog, since clients may show up thousands at a time.
+      ssc.socket().bind(new InetSocketAddress(port), 1024);
+
+      for (int i = 0; i < loops.length; i++)
+      {
+        loops[i] = new EventLoop();
+        Thread t = new Thread(loops[i], "selector-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
+      System.out.println("Server listening on " + port + " (non-blocking, "
+          + loops.length + " selector threads)");
+
+      int next = 0;
+      while (ssc.isOpen())
+      {
+        SocketChannel channel;
+        try
+        {
+          // blocks here until a client attempts to connect
+          channel = ssc.accept();
+        }
+        catch (IOException e)
+        {
+          // Typically out of file descriptors; give some
+          // connections a chance to close before trying again.
+          System.out.println("Accept failed: " + e);
+          pause(ACCEPT_BACKOFF_MILLIS);
+          continue;
+        }
+        try
+        {
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+        }
+        catch (IOException e)
+        {
+          // e.g. the client reset before we got to it
+          System.out.println("Couldn't set up connection: " + e);
+          closeQuietly(channel);
+          continue;
+        }
+        loops[next].add(channel);
+        next = (next + 1) % loops.length;
+      }
+    }
+    finally
+    {
+      compute.shutdown();
+      ssc.close();
+    }
+  }
+
+  /**
+   * One selector and its thread. Anything that touches the selector or
+   * the keys is done on this thread; other threads queue a task and
+   * wake it up.
+   */
+  private class EventLoop implements Runnable
+  {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // For writing several queued frames with one gathering write.
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+
+    EventLoop() throws IOException
+    {
+      selector = Selector.open();
+    }
+
+    void add(final SocketChannel channel)
+    {
+      execute(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(EventLoop.this, channel, key));
+          }
+          catch (IOException e)
+          {
+            System.out.println("Couldn't register connection: " + e);
+            closeQuietly(channel);
+          }
+        }
+      });
+    }
+
+    void execute(Runnable task)
+    {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    public void run()
+    {
+      while (true)
+      {
+        try
+        {
+          selector.select();
+          Runnable task;
+          while ((task = tasks.poll()) != null)
+          {
+            try
+            {
+              task.run();
+            }
+            catch (RuntimeException e)
+            {
+              System.out.println("Exception in selector task: " + e);
+            }
+          }
+
+          Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+          while (selected.hasNext())
+          {
+            SelectionKey key = selected.next();
+            selected.remove();
+            Connection c = (Connection) key.attachment();
+            try
+            {
+              if (!key.isValid())
+              {
+                continue;
+              }
+              if (key.isReadable())
+              {
+                c.read();
+              }
+              if (key.isValid() && key.isWritable())
+              {
+                c.flush();
+              }
+            }
+            catch (RuntimeException e)
+            {
+              // One broken connection shouldn't take the others down.
+              System.out.println("Dropping connection after " + e);
+              c.close();
+            }
+          }
+        }
+        catch (IOException e)
+        {
+          System.out.println("Exception in selector thread: " + e);
+        }
+      }
+    }
+  }
+
+  /**
+   * The state of one client: what has been read but not yet made into
+   * a whole frame, and replies still waiting to be written.
+   */
+  private class Connection
+  {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    // Starts small; grows if a frame won't fit.
+    private ByteBuffer in = ByteBuffer.allocate(4096);
+    // Filled by compute threads, emptied by the loop thread.
+    private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    // Which protocol the client speaks; unknown until the first four bytes.
+    private static final int UNKNOWN = 0, FRAMES = 1, BINARY = 2;
+    private int protocol = UNKNOWN;
+    // Binary only. The frame is used by the loop thread alone; replies
+    // is filled by compute threads and emptied by flush(), both holding
+    // its lock (which is this connection).
+    private BinaryProtocol.Frame frame;
+    private ByteBuffer replies;
+    // Whether the loop already has a flush coming; guarded by this.
+    // Replies that arrive before it runs ride along, so there's one
+    // flush (and one write) for all of them.
+    private boolean flushScheduled;
+    private final Runnable flushTask = new Runnable()
+    {
+      public void run()
+      {
+        flush();
+      }
+    };
+
+    Connection(EventLoop loop, SocketChannel channel, SelectionKey key)
+    {
+      this.loop = loop;
+      this.channel = channel;
+      this.key = key;
+    }
+
+    /**
+     * Reads what has arrived and dispatches every complete frame.
+     */
+    void read()
+    {
+      try
+      {
+        int n = channel.read(in);
+        if (n == -1)
+        {
+          close();
+          return;
+        }
+
+        in.flip();
+        if (protocol == UNKNOWN)
+        {
+          if (in.remaining() < 4)
+          {
+            in.compact();
+            return;
+          }
+          if (in.getInt(in.position()) == BinaryProtocol.MAGIC)
+          {
+            in.position(in.position() + 4);
+            frame = new BinaryProtocol.Frame();
+            replies = ByteBuffer.allocate(4096);
+            protocol = BINARY;
+          }
+          else
+          {
+            protocol = FRAMES;
+          }
+        }
+
+        if (protocol == BINARY)
+        {
+          while (BinaryProtocol.decode(in, frame))
+          {
+            dispatch(frame.copy());
+          }
+        }
+        while (protocol == FRAMES && in.remaining() >= 4)
+        {
+          int length = in.getInt(in.position());
+          if (length < 0 || length > MessageFrames.MAX_FRAME)
+          {
+            System.out.println("Bad frame length " + length + ", dropping client");
+            close();
+            return;
+          }
+          if (in.remaining() < 4 + length)
+          {
+            break;
+          }
+          byte[] body = new byte[length];
+          in.position(in.position() + 4);
+          in.get(body);
+          dispatch(body);
+        }
+        in.compact();
+
+        // Make room if the frame being read is bigger than the buffer.
+        if (in.position() >= 4)
+        {
+          int needed = 4 + in.getInt(0);
+          if (needed > in.capacity())
+          {
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        close();
+      }
+    }
+
+    private void dispatch(final byte[] body)
+    {
+      compute.execute(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            Message m = MessageFrames.fromBytes(body, 0, body.length);
+            send(MessageFrames.frame(server.respond(m, compute)));
+          }
+          catch (IOException e)
+          {
+            System.out.println("Exception handling request: " + e);
+          }
+        }
+      });
+    }
+
+    private void dispatch(final BinaryProtocol.Frame request)
+    {
+      compute.execute(new Runnable()
+      {
+        public void run()
+        {
+          send(server.respond(request, compute));
+        }
+      });
+    }
+
+    /**
+     * Encodes a binary reply behind any others waiting to be written,
+     * and has the loop write them if it isn't about to already. Any
+     * thread.
+     */
+    void send(BinaryProtocol.Frame reply)
+    {
+      synchronized (this)
+      {
+        int size = BinaryProtocol.size(reply);
+        if (replies.remaining() < size)
+        {
+          ByteBuffer bigger = ByteBuffer.allocate(Math.max(replies.capacity() * 2, replies.position() + size));
+          replies.flip();
+          bigger.put(replies);
+          replies = bigger;
+        }
+        BinaryProtocol.encode(replies, reply);
+        if (flushScheduled)
+        {
+          return;
+        }
+        flushScheduled = true;
+      }
+      loop.execute(flushTask);
+    }
+
+    /**
+     * Queues a frame and has the loop write it, along with any
+     * others queued by then. Any thread.
+     */
+    void send(ByteBuffer frame)
+    {
+      out.add(frame);
+      synchronized (this)
+      {
+        if (flushScheduled)
+        {
+          return;
+        }
+        flushScheduled = true;
+      }
+      loop.execute(flushTask);
+    }
+
+    /**
+     * Writes as much as the socket will take; if it won't take it all,
+     * waits for OP_WRITE to carry on. Loop thread only.
+     */
+    void flush()
+    {
+      if (!key.isValid())
+      {
+        return;
+      }
+      try
+      {
+        // Anything sent from here on needs another flush.
+        synchronized (this)
+        {
+          flushScheduled = false;
+        }
+        if (!flushFrames())
+        {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        if (replies != null)
+        {
+          synchronized (this)
+          {
+            replies.flip();
+            channel.write(replies);
+            boolean more = replies.hasRemaining();
+            replies.compact();
+            if (more)
+            {
+              key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+              return;
+            }
+          }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      }
+      catch (IOException e)
+      {
+        close();
+      }
+    }
+
+    /**
+     * Writes queued frames, as many at a time as fit in the loop's
+     * gather array.
+     * @return
+     *   true if they all went, false if the socket is full
+     */
+    private boolean flushFrames() throws IOException
+    {
+      ByteBuffer[] gather = loop.gather;
+      while (true)
+      {
+        int count = 0;
+        for (ByteBuffer b : out)
+        {
+          if (count == gather.length)
+          {
+            break;
+          }
+          gather[count++] = b;
+        }
+        if (count == 0)
+        {
+          return true;
+        }
+        channel.write(gather, 0, count);
+        boolean all = !gather[count - 1].hasRemaining();
+        Arrays.fill(gather, 0, count, null);
+
+        // Frames are never empty, so only written ones have nothing left.
+        ByteBuffer b;
+        while ((b = out.peek()) != null && !b.hasRemaining())
+        {
+          out.poll();
+        }
+        if (!all)
+        {
+          return false;
+        }
+      }
+    }
+
+    void close()
+    {
+      key.cancel();
+      closeQuietly(channel);
+    }
+  }
+
+  private static void pause(long millis)
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel)
+  {
+    try
+    {
+      channel.close();
+    }
+    catch (IOException ignore){}
+  }
+}
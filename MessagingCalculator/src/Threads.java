@@ -0,0 +1,87 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Where the server and proxy get their threads from when
+ * virtual threads are asked for.
+ * <p>
+ * Virtual threads are cheap enough to have one per request,
+ * so a request that mostly sleeps (SlowCalculator) costs a
+ * little heap instead of a whole platform thread. They only
+ * exist on Java 21 and up, and this code still has to build
+ * and run on old JDKs, so they are looked up by reflection.
+ * Without them everything falls back to ordinary threads,
+ * one per task, from a cached pool.
+ */
+public class Threads
+{
+  private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+
+  private Threads()
+  {
+  }
+
+  /**
+   * Whether this JVM has virtual threads.
+   */
+  public static boolean virtualThreadsAvailable()
+  {
+    return VIRTUAL_FACTORY != null;
+  }
+
+  /**
+   * Starts a task on its own thread: a virtual one if asked
+   * for and available, a platform one otherwise.
+   */
+  public static Thread start(Runnable task, boolean virtual)
+  {
+    Thread t = virtual && VIRTUAL_FACTORY != null
+        ? VIRTUAL_FACTORY.newThread(task)
+        : new Thread(task);
+    t.start();
+    return t;
+  }
+
+  /**
+   * An executor that runs every task on a new thread: virtual
+   * if available, otherwise a cached pool of platform threads.
+   */
+  public static ExecutorService perTaskExecutor()
+  {
+    if (VIRTUAL_FACTORY != null)
+    {
+      try
+      {
+        Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) m.invoke(null);
+      }
+      catch (Exception e)
+      {
+        // Factory was there, so this should be too; fall through anyway.
+      }
+    }
+    return Executors.newCachedThreadPool();
+  }
+
+  /**
+   * Thread.ofVirtual().factory(), or null before Java 21.
+   */
+  private static ThreadFactory lookupVirtualFactory()
+  {
+    try
+    {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      // Call through the public interface; the builder class itself isn't accessible.
+      Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    }
+    catch (Exception e)
+    {
+      // NoSuchMethodException before 19, UnsupportedOperationException
+      // (wrapped) on 19 and 20 without --enable-preview.
+      return null;
+    }
+  }
+}
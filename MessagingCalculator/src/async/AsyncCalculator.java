@@ -4,6 +4,8 @@ import common.RemoteException;
 import common.SlowCalculator;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -65,4 +67,62 @@ public class AsyncCalculator implements IAsyncCalculator
     executor.submit(r);
   }
 
+  @Override
+  public Future<int[]> incrementAll(int[] values)
+  {
+    BatchFuture f = new BatchFuture(values.length);
+    incrementAllAsync(values, f);
+    return f;
+  }
+
+  @Override
+  public void incrementAllAsync(int[] values, final IBatchCallback callback)
+  {
+    if (values.length == 0)
+    {
+      callback.asyncComplete();
+      return;
+    }
+
+    // Each value is a task of its own, so a bigger executor
+    // works on several at once.  The last one to finish
+    // reports completion; the first to fail reports that
+    // instead, and the rest don't bother.
+    final int[] copy = values.clone();
+    final AtomicInteger remaining = new AtomicInteger(copy.length);
+    final AtomicBoolean failed = new AtomicBoolean();
+    for (int k = 0; k < copy.length; k++)
+    {
+      final int index = k;
+      Runnable r = new Runnable()
+      {
+        public void run()
+        {
+          if (failed.get())
+          {
+            return;
+          }
+          SlowCalculator calc = new SlowCalculator();
+          try
+          {
+            int ret = calc.increment(copy[index]);
+            callback.asyncResult(index, ret);
+            if (remaining.decrementAndGet() == 0)
+            {
+              callback.asyncComplete();
+            }
+          }
+          catch (Exception e)
+          {
+            if (failed.compareAndSet(false, true))
+            {
+              callback.asyncException(e);
+            }
+          }
+        }
+      };
+      executor.submit(r);
+    }
+  }
+
 }
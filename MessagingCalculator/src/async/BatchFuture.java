@@ -0,0 +1,94 @@
+package async;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future for the results of a batch, filled in through
+ * the IBatchCallback interface.  Lets an implementation
+ * write incrementAll() in terms of incrementAllAsync().
+ */
+public class BatchFuture implements IBatchCallback, Future<int[]>
+{
+  private final int[] results;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile Exception exception;
+
+  /**
+   * @param size
+   *   number of values in the batch
+   */
+  public BatchFuture(int size)
+  {
+    results = new int[size];
+  }
+
+  @Override
+  public void asyncResult(int index, int result)
+  {
+    results[index] = result;
+  }
+
+  @Override
+  public void asyncComplete()
+  {
+    done.countDown();
+  }
+
+  @Override
+  public void asyncException(Exception e)
+  {
+    exception = e;
+    done.countDown();
+  }
+
+  /**
+   * The batch can't be cancelled once it's been sent.
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning)
+  {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled()
+  {
+    return false;
+  }
+
+  @Override
+  public boolean isDone()
+  {
+    return done.getCount() == 0;
+  }
+
+  @Override
+  public int[] get() throws InterruptedException, ExecutionException
+  {
+    done.await();
+    return result();
+  }
+
+  @Override
+  public int[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+  {
+    if (!done.await(timeout, unit))
+    {
+      throw new TimeoutException();
+    }
+    return result();
+  }
+
+  private int[] result() throws ExecutionException
+  {
+    if (exception != null)
+    {
+      throw new ExecutionException(exception);
+    }
+    return results;
+  }
+}
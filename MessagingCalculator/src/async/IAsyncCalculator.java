@@ -28,4 +28,26 @@ public interface IAsyncCalculator
    *   the callback to be invoked when the task is complete
    */
   public void incrementAsync(int i, ICallback callback);
+
+  /**
+   * Returns a Future for the results of incrementing each
+   * of the values, in the same order.  Cheaper than calling
+   * increment() for each one: the whole batch is one request.
+   * @param values
+   *   the numbers to be incremented
+   * @return
+   *   a Future to hold the eventual return values
+   */
+  public Future<int[]> incrementAll(int[] values);
+
+  /**
+   * Initiates the increment operation for each of the
+   * values and reports each result to the callback as it
+   * becomes available.
+   * @param values
+   *   the numbers to be incremented
+   * @param callback
+   *   the callback to be invoked as the results come in
+   */
+  public void incrementAllAsync(int[] values, IBatchCallback callback);
 }
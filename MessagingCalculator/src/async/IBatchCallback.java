@@ -0,0 +1,34 @@
+package async;
+/**
+ * Gets the results of a batch operation one value at a
+ * time, as they become available.
+ */
+public interface IBatchCallback
+{
+  /**
+   * Method to be invoked for each value in the batch
+   * once its result is available, in no particular order.
+   * This method executes in the context of the execution
+   * thread for the operation.
+   * @param index
+   *   position of the value in the batch
+   * @param result
+   *   result of the operation on that value
+   */
+  void asyncResult(int index, int result);
+
+  /**
+   * Method to be invoked after the last result, once every
+   * value in the batch has been reported.
+   */
+  void asyncComplete();
+
+  /**
+   * Method to be invoked instead of asyncComplete() if the
+   * operation fails for any value.  Some results may have
+   * been reported already; no more calls follow this one.
+   * @param e
+   *   exception that occurred
+   */
+  void asyncException(Exception e);
+}